@@ -0,0 +1,187 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.*;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Throughput and allocation of the packet codec on the messages a resolver handles most:
+ * a root referral to com with its full glue (13 NS, 13 A and 13 AAAA records, plus OPT), a
+ * CNAME chain through two CDNs, and a reply with several AAAA records. The messages copy
+ * real responses record for record; their wire form is what DNS.serialize produces, so names
+ * are compressed the way servers compress them.
+ *
+ * Usage: CodecBenchmark [-w warmups] [-i iterations] [-t iterationMillis] [-b budgetFile]
+ */
+public class CodecBenchmark
+{
+	private final static String[] GTLD_A = { "192.5.6.30", "192.33.14.30", "192.26.92.30", "192.31.80.30",
+			"192.12.94.30", "192.35.51.30", "192.42.93.30", "192.54.112.30", "192.43.172.30", "192.48.79.30",
+			"192.52.178.30", "192.41.162.30", "192.55.83.30" };
+	private final static String[] GTLD_AAAA = { "2001:503:a83e::2:30", "2001:503:231d::2:30", "2001:503:83eb::30",
+			"2001:500:856e::30", "2001:502:1ca1::30", "2001:503:d414::30", "2001:503:eea3::30", "2001:502:8cc::30",
+			"2001:503:39c1::30", "2001:502:7094::30", "2001:503:d2d::30", "2001:500:d937::30", "2001:501:b1f9::30" };
+
+	public static void main(String[] args) throws Exception {
+		Microbench bench = new Microbench(args);
+
+		final DNS referral = referral();
+		final DNS cnameChain = cnameChain();
+		final DNS aaaa = aaaaAnswers();
+		final byte[] referralWire = referral.serialize();
+		final byte[] cnameWire = cnameChain.serialize();
+		final byte[] aaaaWire = aaaa.serialize();
+		System.out.println("referral " + referralWire.length + " bytes, cname chain " + cnameWire.length
+				+ " bytes, aaaa " + aaaaWire.length + " bytes");
+
+		bench.run("deserialize.referral", new Microbench.Op() {
+			public Object run() {
+				return DNS.deserialize(referralWire, referralWire.length);
+			}
+		});
+		bench.run("deserialize.cnameChain", new Microbench.Op() {
+			public Object run() {
+				return DNS.deserialize(cnameWire, cnameWire.length);
+			}
+		});
+		bench.run("deserialize.aaaa", new Microbench.Op() {
+			public Object run() {
+				return DNS.deserialize(aaaaWire, aaaaWire.length);
+			}
+		});
+
+		bench.run("serialize.referral", new Microbench.Op() {
+			public Object run() {
+				return referral.serialize();
+			}
+		});
+		bench.run("serialize.cnameChain", new Microbench.Op() {
+			public Object run() {
+				return cnameChain.serialize();
+			}
+		});
+		bench.run("serialize.aaaa", new Microbench.Op() {
+			public Object run() {
+				return aaaa.serialize();
+			}
+		});
+		// What the server itself does: encode into a pooled buffer with a reused compression table
+		final ByteBuffer out = ByteBuffer.allocate(SimpleDNS.MAX_PACKET_SIZE);
+		final DNSNameTable names = new DNSNameTable();
+		bench.run("writeTo.referral", new Microbench.Op() {
+			public Object run() {
+				out.clear();
+				return referral.writeTo(out, names);
+			}
+		});
+
+		// The first answer's owner is a bare pointer to the question; the second CNAME target
+		// is labels ending in a pointer to a suffix in the first one
+		final ByteBuffer cnameBuffer = ByteBuffer.wrap(cnameWire);
+		final int pointerOnly = recordOffset(cnameWire, 0);
+		final int labelsThenPointer = recordOffset(cnameWire, 1) + rdataStart(cnameWire, recordOffset(cnameWire, 1));
+		bench.run("deserializeName.pointer", new Microbench.Op() {
+			public Object run() {
+				cnameBuffer.position(pointerOnly);
+				return DNS.deserializeName(cnameBuffer);
+			}
+		});
+		bench.run("deserializeName.labelsThenPointer", new Microbench.Op() {
+			public Object run() {
+				cnameBuffer.position(labelsThenPointer);
+				return DNS.deserializeName(cnameBuffer);
+			}
+		});
+		bench.run("DNSName.read.labelsThenPointer", new Microbench.Op() {
+			public Object run() {
+				cnameBuffer.position(labelsThenPointer);
+				return DNSName.read(cnameBuffer);
+			}
+		});
+
+		bench.finish();
+	}
+
+	/** Root server's answer to www.example.com A: a referral to com with full glue */
+	private static DNS referral() throws Exception {
+		DNS dns = response("www.example.com", DNS.TYPE_A);
+		for (int i = 0; i < GTLD_A.length; i++) {
+			dns.addAuthority(record("com", DNS.TYPE_NS, 172800, new DNSRdataName(gtld(i))));
+		}
+		for (int i = 0; i < GTLD_A.length; i++) {
+			dns.addAdditional(record(gtld(i), DNS.TYPE_A, 172800, new DNSRdataAddress(InetAddress.getByName(GTLD_A[i]))));
+		}
+		for (int i = 0; i < GTLD_AAAA.length; i++) {
+			dns.addAdditional(record(gtld(i), DNS.TYPE_AAAA, 172800,
+					new DNSRdataAddress(InetAddress.getByName(GTLD_AAAA[i]))));
+		}
+		dns.setUdpPayloadSize(1232);
+		return dns;
+	}
+
+	/** www.microsoft.com through edgekey and akadns down to an akamaiedge address */
+	private static DNS cnameChain() throws Exception {
+		DNS dns = response("www.microsoft.com", DNS.TYPE_A);
+		dns.addAnswer(record("www.microsoft.com", DNS.TYPE_CNAME, 3600,
+				new DNSRdataName("www.microsoft.com-c-3.edgekey.net")));
+		dns.addAnswer(record("www.microsoft.com-c-3.edgekey.net", DNS.TYPE_CNAME, 900,
+				new DNSRdataName("www.microsoft.com-c-3.edgekey.net.globalredir.akadns.net")));
+		dns.addAnswer(record("www.microsoft.com-c-3.edgekey.net.globalredir.akadns.net", DNS.TYPE_CNAME, 900,
+				new DNSRdataName("e13678.dscb.akamaiedge.net")));
+		dns.addAnswer(record("e13678.dscb.akamaiedge.net", DNS.TYPE_A, 20,
+				new DNSRdataAddress(InetAddress.getByName("23.35.229.160"))));
+		return dns;
+	}
+
+	/** A dual-stacked CDN name: a CNAME, then four AAAA records */
+	private static DNS aaaaAnswers() throws Exception {
+		DNS dns = response("www.wikipedia.org", DNS.TYPE_AAAA);
+		dns.addAnswer(record("www.wikipedia.org", DNS.TYPE_CNAME, 86400, new DNSRdataName("dyna.wikimedia.org")));
+		String[] addresses = { "2620:0:861:ed1a::1", "2620:0:860:ed1a::1", "2620:0:863:ed1a::1", "2a02:ec80:300:ed1a::1" };
+		for (String address : addresses) {
+			dns.addAnswer(record("dyna.wikimedia.org", DNS.TYPE_AAAA, 600, new DNSRdataAddress(InetAddress.getByName(address))));
+		}
+		return dns;
+	}
+
+	private static DNS response(String name, short type) {
+		DNS dns = new DNS();
+		dns.setId((short) 0x1234);
+		dns.setQuery(false);
+		dns.setOpcode(DNS.OPCODE_STANDARD_QUERY);
+		dns.addQuestion(new DNSQuestion(name, type));
+		return dns;
+	}
+
+	private static DNSResourceRecord record(String name, short type, int ttl, DNSRdata data) {
+		DNSResourceRecord record = new DNSResourceRecord(name, type, data);
+		record.setTtl(ttl);
+		return record;
+	}
+
+	private static String gtld(int i) {
+		return (char) ('a' + i) + ".gtld-servers.net";
+	}
+
+	/** Offset of the i-th resource record after the (single) question */
+	private static int recordOffset(byte[] wire, int i) {
+		ByteBuffer bb = ByteBuffer.wrap(wire);
+		int offset = DNSView.wrap(wire, wire.length).getQuestionEndOffset(0);
+		for (int r = 0; r < i; r++) {
+			bb.position(offset);
+			DNSName.read(bb);
+			// Type, class and TTL, then RDLENGTH
+			offset = bb.position() + 10 + (bb.getShort(bb.position() + 8) & 0xffff);
+		}
+		return offset;
+	}
+
+	/** Distance from the start of the record at offset to its RDATA */
+	private static int rdataStart(byte[] wire, int offset) {
+		ByteBuffer bb = ByteBuffer.wrap(wire);
+		bb.position(offset);
+		DNSName.read(bb);
+		return bb.position() + 10 - offset;
+	}
+}
@@ -0,0 +1,104 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.*;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Throughput and allocation of SimpleDNS.addEC2ToAns, the EC2 check on every A reply, against
+ * the shipped range table and a synthetic one of a million ranges. Each reply carries eight A
+ * records, half of them inside the table, so both the hit path (a TXT record is added) and the
+ * miss path are measured. The added records are taken off again after each operation.
+ *
+ * Usage: Ec2Benchmark [-w warmups] [-i iterations] [-t iterationMillis] [-b budgetFile] [-e ec2.csv]
+ */
+public class Ec2Benchmark
+{
+	private final static int ANSWERS = 8;
+	private final static int LARGE_TABLE_RANGES = 1000000;
+
+	public static void main(String[] args) throws Exception {
+		Microbench bench = new Microbench(args);
+		String file = "ec2.csv";
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (args[i].equals("-e")) {
+				file = args[i + 1];
+			}
+		}
+
+		Ec2Table small = SimpleDNS.readEC2Table(file);
+		Random random = new Random(42);
+		Map<String, String> ranges = new HashMap<String, String>();
+		int[] networks = new int[LARGE_TABLE_RANGES];
+		String[] regions = { "Virginia", "Oregon", "California", "Ireland", "Frankfurt", "Tokyo", "Singapore", "Sydney" };
+		for (int i = 0; i < LARGE_TABLE_RANGES; i++) {
+			// Mostly /24s, as in the real table, spread over the whole address space
+			int subnetLength = 20 + random.nextInt(9);
+			networks[i] = random.nextInt() & (-1 << (32 - subnetLength));
+			ranges.put(toDotted(networks[i]) + "/" + subnetLength, regions[random.nextInt(regions.length)]);
+		}
+		long start = System.nanoTime();
+		Ec2Table large = new Ec2Table(ranges);
+		System.out.println(String.format("small table %d intervals; large table %d intervals, built in %.0f ms, ~%d KiB",
+				small.size(), large.size(), (System.nanoTime() - start) / 1e6, large.footprintBytes() / 1024));
+
+		final DNS smallReply = reply(new int[] { address("72.44.32.5"), address("67.202.0.9"),
+				address("75.101.128.77"), address("174.129.1.1") }, random);
+		final DNS largeReply = reply(new int[] { networks[1], networks[1000] + 1, networks[100000],
+				networks[999999] }, random);
+		final Ec2Table smallTable = small;
+		final Ec2Table largeTable = large;
+
+		bench.run("addEC2ToAns.small", new Microbench.Op() {
+			public Object run() {
+				SimpleDNS.addEC2ToAns(smallReply, smallTable);
+				return reset(smallReply);
+			}
+		});
+		bench.run("addEC2ToAns.large", new Microbench.Op() {
+			public Object run() {
+				SimpleDNS.addEC2ToAns(largeReply, largeTable);
+				return reset(largeReply);
+			}
+		});
+
+		bench.finish();
+	}
+
+	/** An A reply with the given addresses inside EC2 and as many random ones */
+	private static DNS reply(int[] inside, Random random) throws Exception {
+		DNS dns = new DNS();
+		dns.setQuery(false);
+		dns.setOpcode(DNS.OPCODE_STANDARD_QUERY);
+		dns.addQuestion(new DNSQuestion("www.example.com", DNS.TYPE_A));
+		for (int i = 0; i < ANSWERS; i++) {
+			int ip = i < inside.length ? inside[i] : random.nextInt();
+			byte[] octets = { (byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip };
+			dns.addAnswer(new DNSResourceRecord("www.example.com", DNS.TYPE_A,
+					new DNSRdataAddress(InetAddress.getByAddress(octets))));
+		}
+		return dns;
+	}
+
+	/** Drops the TXT records addEC2ToAns added, without allocating */
+	private static List<DNSResourceRecord> reset(DNS dns) {
+		List<DNSResourceRecord> answers = dns.getAnswers();
+		while (answers.size() > ANSWERS) {
+			answers.remove(answers.size() - 1);
+		}
+		return answers;
+	}
+
+	private static int address(String dotted) throws Exception {
+		byte[] octets = InetAddress.getByName(dotted).getAddress();
+		return (octets[0] & 0xff) << 24 | (octets[1] & 0xff) << 16 | (octets[2] & 0xff) << 8 | (octets[3] & 0xff);
+	}
+
+	private static String toDotted(int ip) {
+		return (ip >>> 24) + "." + (ip >>> 16 & 0xff) + "." + (ip >>> 8 & 0xff) + "." + (ip & 0xff);
+	}
+}
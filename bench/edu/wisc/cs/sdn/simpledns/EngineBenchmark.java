@@ -0,0 +1,145 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.*;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the platform-thread pool engine with the virtual-thread engine on the workload
+ * handleDnsQuery produces: many resolutions, each a few blocking UDP round trips to a slow
+ * authority. A local responder delays every reply, standing in for upstream RTT.
+ *
+ * Usage: EngineBenchmark [queries] [hops] [authorityDelayMs] [poolThreads]
+ */
+public class EngineBenchmark
+{
+	private final static int QUERY_SIZE = 32;
+
+	public static void main(String[] args) throws Exception {
+		int queries = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int hops = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		int delayMillis = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		int poolThreads = args.length > 3 ? Integer.parseInt(args[3]) : 4 * Runtime.getRuntime().availableProcessors();
+
+		SlowAuthority authority = new SlowAuthority(delayMillis);
+		System.out.println("queries=" + queries + " hops=" + hops + " delay=" + delayMillis + "ms"
+				+ " cores=" + Runtime.getRuntime().availableProcessors() + " java=" + System.getProperty("java.version"));
+
+		// First pass of each warms up the JIT and the responder
+		run("pool(" + poolThreads + ")", SimpleDNS.createWorkerPool(poolThreads, queries), authority, queries / 10, hops, false);
+		run("pool(" + poolThreads + ")", SimpleDNS.createWorkerPool(poolThreads, queries), authority, queries, hops, true);
+
+		if (SimpleDNS.createVirtualExecutor() == null) {
+			System.out.println("virtual: unavailable, needs Java 21 or later");
+		} else {
+			run("virtual", SimpleDNS.createVirtualExecutor(), authority, queries / 10, hops, false);
+			run("virtual", SimpleDNS.createVirtualExecutor(), authority, queries, hops, true);
+		}
+		authority.close();
+	}
+
+	private static void run(String mode, ExecutorService executor, final SlowAuthority authority,
+			int queries, final int hops, boolean report) throws InterruptedException {
+		final long[] latencies = new long[queries];
+		final AtomicInteger failures = new AtomicInteger();
+		final CountDownLatch latch = new CountDownLatch(queries);
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < queries; i++) {
+			final int slot = i;
+			executor.execute(new Runnable() {
+				public void run() {
+					long begin = System.nanoTime();
+					try {
+						resolve(authority.getAddress(), hops);
+					} catch (IOException e) {
+						failures.incrementAndGet();
+					} finally {
+						latencies[slot] = System.nanoTime() - begin;
+						latch.countDown();
+					}
+				}
+			});
+		}
+		latch.await();
+		long elapsed = System.nanoTime() - start;
+		executor.shutdown();
+
+		if (!report) {
+			return;
+		}
+		Arrays.sort(latencies);
+		System.out.println(String.format("%-10s %8.0f q/s  p50 %6.1f ms  p99 %7.1f ms  peak platform threads %5d  failures %d",
+				mode, queries / (elapsed / 1e9),
+				latencies[queries / 2] / 1e6, latencies[(int) (queries * 0.99)] / 1e6,
+				threads.getPeakThreadCount(), failures.get()));
+	}
+
+	/** Same shape as handleDnsQuery: one socket per resolution, one blocking round trip per hop */
+	private static void resolve(SocketAddress authority, int hops) throws IOException {
+		byte[] buffer = new byte[SimpleDNS.MAX_PACKET_SIZE];
+		DatagramSocket socket = new DatagramSocket();
+		socket.setSoTimeout(SimpleDNS.MAX_TIME_OUT);
+		try {
+			for (int i = 0; i < hops; i++) {
+				socket.send(new DatagramPacket(new byte[QUERY_SIZE], QUERY_SIZE, authority));
+				socket.receive(new DatagramPacket(buffer, buffer.length));
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	/** Echoes every datagram back after a fixed delay */
+	private static class SlowAuthority implements Runnable
+	{
+		private final DatagramSocket socket;
+		private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+		private final int delayMillis;
+
+		SlowAuthority(int delayMillis) throws SocketException {
+			this.delayMillis = delayMillis;
+			this.socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			this.socket.setReceiveBufferSize(1 << 22);
+			Thread t = new Thread(this, "slow-authority");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		SocketAddress getAddress() {
+			return socket.getLocalSocketAddress();
+		}
+
+		public void run() {
+			while (!socket.isClosed()) {
+				try {
+					byte[] data = new byte[QUERY_SIZE];
+					final DatagramPacket packet = new DatagramPacket(data, data.length);
+					socket.receive(packet);
+					timer.schedule(new Runnable() {
+						public void run() {
+							try {
+								socket.send(packet);
+							} catch (IOException e) {
+								// Dropped reply shows up as a client timeout
+							}
+						}
+					}, delayMillis, TimeUnit.MILLISECONDS);
+				} catch (IOException e) {
+					return;
+				}
+			}
+		}
+
+		void close() {
+			timer.shutdownNow();
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Small single-threaded benchmark harness for code that runs in microseconds. Each benchmark
+ * gets warm-up iterations for the JIT, then timed iterations of a fixed length; throughput is
+ * the mean over the timed ones, with the spread between them, and allocation is the bytes the
+ * thread allocated per operation (HotSpot's per-thread counter). Results are fed into a sink
+ * so the JIT cannot drop the work.
+ *
+ * Optional allocation budgets ("name maxBytesPerOp" per line, # for comments) turn a run into
+ * a regression check: {@link #finish()} exits with status 1 if any benchmark went over its
+ * budget. Allocation per operation is stable across machines, unlike throughput.
+ *
+ * Options: -w warmupIterations, -i iterations, -t iterationMillis, -b budgetFile
+ */
+final class Microbench
+{
+	/** Operations between clock reads, so the clock costs next to nothing */
+	private final static int BATCH = 64;
+
+	interface Op
+	{
+		/** One operation; the result is kept so it cannot be optimized away */
+		Object run();
+	}
+
+	/** Written by every operation; static and read once at the end, so the stores stay */
+	static Object sink;
+
+	private final int warmups;
+	private final int iterations;
+	private final long iterationNanos;
+	private final Map<String, Long> budgets = new HashMap<String, Long>();
+	private final com.sun.management.ThreadMXBean threads;
+	private int overBudget;
+
+	Microbench(String[] args) throws IOException {
+		int warmups = 5;
+		int iterations = 10;
+		long iterationMillis = 500;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (args[i].equals("-w")) {
+				warmups = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("-i")) {
+				iterations = Integer.parseInt(args[i + 1]);
+			} else if (args[i].equals("-t")) {
+				iterationMillis = Long.parseLong(args[i + 1]);
+			} else if (args[i].equals("-b")) {
+				readBudgets(args[i + 1]);
+			}
+		}
+		this.warmups = warmups;
+		this.iterations = Math.max(1, iterations);
+		this.iterationNanos = iterationMillis * 1000000;
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		this.threads = bean instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()
+				? (com.sun.management.ThreadMXBean) bean : null;
+		System.out.println("warmups=" + warmups + " iterations=" + iterations + " x " + iterationMillis + "ms"
+				+ " java=" + System.getProperty("java.version") + (budgets.isEmpty() ? "" : " budgets=" + budgets.size()));
+	}
+
+	private void readBudgets(String file) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\\s+");
+				budgets.put(fields[0], Long.parseLong(fields[1]));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Measures op and prints one line: throughput, its spread, and bytes allocated per operation */
+	void run(String name, Op op) {
+		for (int i = 0; i < warmups; i++) {
+			iteration(op);
+		}
+		long thread = Thread.currentThread().getId();
+		long allocatedBefore = threads != null ? threads.getThreadAllocatedBytes(thread) : 0;
+		double[] rates = new double[iterations];
+		long ops = 0;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			long n = iteration(op);
+			rates[i] = n / ((System.nanoTime() - start) / 1e9);
+			ops += n;
+		}
+		long bytesPerOp = threads != null ? Math.round((threads.getThreadAllocatedBytes(thread) - allocatedBefore) / (double) ops) : -1;
+
+		double mean = 0;
+		for (double rate : rates) {
+			mean += rate;
+		}
+		mean /= rates.length;
+		double variance = 0;
+		for (double rate : rates) {
+			variance += (rate - mean) * (rate - mean);
+		}
+		double spread = rates.length > 1 ? Math.sqrt(variance / (rates.length - 1)) / mean * 100 : 0;
+
+		Long budget = budgets.get(name);
+		String verdict = "";
+		if (budget != null && bytesPerOp >= 0) {
+			if (bytesPerOp > budget) {
+				verdict = "  OVER BUDGET (" + budget + " B/op)";
+				overBudget++;
+			} else {
+				verdict = "  within budget (" + budget + " B/op)";
+			}
+		}
+		System.out.println(String.format("%-36s %12.0f ops/s  +-%4.1f%%  %8s B/op%s", name, mean, spread,
+				bytesPerOp >= 0 ? Long.toString(bytesPerOp) : "n/a", verdict));
+	}
+
+	/** Runs op for one iteration's worth of time, in whole batches */
+	private long iteration(Op op) {
+		long end = System.nanoTime() + iterationNanos;
+		long n = 0;
+		do {
+			for (int i = 0; i < BATCH; i++) {
+				sink = op.run();
+			}
+			n += BATCH;
+		} while (System.nanoTime() < end);
+		return n;
+	}
+
+	/** Ends the run; exits with status 1 if a benchmark allocated more than its budget */
+	void finish() {
+		if (sink == null) {
+			System.out.println("(no result)");
+		}
+		if (overBudget > 0) {
+			System.out.println(overBudget + " benchmark(s) over their allocation budget");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded, concurrent cache of resolution results keyed by (name, type, class).
+ * Positive entries live as long as the smallest TTL in their record set. Negative entries
+ * (NXDOMAIN and NODATA) live for the SOA minimum from the authority section, capped by the
+ * SOA's own TTL (RFC 2308); a name error covers every type of its name. Hits hand out copies
+ * whose TTLs are aged by the time the entry spent in cache. Expired entries are kept for a
+ * day more, so they can still be served, stale, while their names cannot be resolved (RFC 8767).
+ */
+class AnswerCache
+{
+	/** Type used in keys of name errors, which hold for all types of a name */
+	private final static short ANY_TYPE = 0;
+	/** How long past expiry an entry may still be served stale */
+	private final static long MAX_STALE_MILLIS = 24 * 60 * 60 * 1000L;
+	/** TTL of stale records handed out, so clients come back soon (RFC 8767 section 4) */
+	private final static int STALE_TTL = 30;
+
+	private static final class Entry
+	{
+		private final byte rcode;
+		private final List<DNSResourceRecord> answers;
+		private final List<DNSResourceRecord> authorities;
+		private final long storedAt;
+		private final long expiresAt;
+		private final AtomicInteger hits = new AtomicInteger();
+		private final AtomicBoolean refreshing = new AtomicBoolean();
+
+		private Entry(byte rcode, List<DNSResourceRecord> answers, List<DNSResourceRecord> authorities,
+				long storedAt, long expiresAt) {
+			this.rcode = rcode;
+			this.answers = answers;
+			this.authorities = authorities;
+			this.storedAt = storedAt;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final ConcurrentHashMap<CacheKey, Entry> entries = new ConcurrentHashMap<CacheKey, Entry>();
+	private final int capacity;
+	private final RefreshAhead refreshAhead;
+
+	/** @param refreshAhead when to refresh popular entries, or null to let them expire */
+	AnswerCache(int capacity, RefreshAhead refreshAhead) {
+		this.capacity = capacity;
+		this.refreshAhead = refreshAhead;
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/** @return a reply to clientQuery built from the cache, or null on a miss */
+	DNS get(DNS clientQuery, long nowMillis) {
+		DNSQuestion question = clientQuery.getQuestions().get(0);
+		Entry entry = lookup(question, nowMillis);
+		if (entry == null || nowMillis >= entry.expiresAt) {
+			return null;
+		}
+		if (refreshAhead != null && refreshAhead.onHit(entry.hits, entry.refreshing, entry.storedAt, entry.expiresAt, nowMillis)) {
+			refreshAhead.refresh(question, entry.refreshing);
+		}
+		int aged = (int) ((nowMillis - entry.storedAt) / 1000);
+		DNS reply = Resolution.newReply(clientQuery);
+		reply.setRcode(entry.rcode);
+		reply.setAnswers(copy(entry.answers, aged));
+		reply.setAuthorities(copy(entry.authorities, aged));
+		return reply;
+	}
+
+	/** True if an expired answer to question is on hand, to fall back on if resolving it fails */
+	boolean hasStale(DNSQuestion question, long nowMillis) {
+		Entry entry = lookup(question, nowMillis);
+		return entry != null && nowMillis >= entry.expiresAt;
+	}
+
+	/** @return a reply to clientQuery from an expired entry with every TTL cut to 30s, or null */
+	DNS getStale(DNS clientQuery, long nowMillis) {
+		Entry entry = lookup(clientQuery.getQuestions().get(0), nowMillis);
+		if (entry == null || nowMillis < entry.expiresAt) {
+			return null;
+		}
+		DNS reply = Resolution.newReply(clientQuery);
+		reply.setRcode(entry.rcode);
+		reply.setAnswers(copyStale(entry.answers));
+		reply.setAuthorities(copyStale(entry.authorities));
+		return reply;
+	}
+
+	/** The exact entry for question, else a name error for its name; fresh or stale */
+	private Entry lookup(DNSQuestion question, long nowMillis) {
+		Entry entry = lookup(CacheKey.of(question), nowMillis);
+		if (entry == null) {
+			entry = lookup(new CacheKey(question.getDomainName(), ANY_TYPE, question.getCls()), nowMillis);
+		}
+		return entry;
+	}
+
+	private Entry lookup(CacheKey key, long nowMillis) {
+		Entry entry = entries.get(key);
+		if (entry != null && nowMillis >= entry.expiresAt + MAX_STALE_MILLIS) {
+			entries.remove(key, entry);
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Remembers the final reply of a resolution, if it is cacheable.
+	 * @return seconds the reply will be served from cache, 0 if it was not stored
+	 */
+	long put(DNS reply, long nowMillis) {
+		DNSQuestion question = reply.getQuestions().get(0);
+		List<DNSResourceRecord> answers = reply.getAnswers();
+		byte rcode = reply.getRcode();
+		if (rcode == DNS.RCODE_NO_ERROR && !answers.isEmpty()) {
+			return store(CacheKey.of(question), rcode, answers, new ArrayList<DNSResourceRecord>(), minTtl(answers), nowMillis);
+		}
+		if (rcode != DNS.RCODE_NO_ERROR && rcode != DNS.RCODE_NAME_ERROR) {
+			return 0;
+		}
+
+		// Negative answer: without an SOA there is no TTL to honour, so it is not cached
+		DNSResourceRecord soa = null;
+		for (DNSResourceRecord auth : reply.getAuthorities()) {
+			// An SOA whose data did not decode (e.g. empty) has no minimum to go by either
+			if (auth.getType() == DNS.TYPE_SOA && auth.getData() instanceof DNSRdataSoa) {
+				soa = auth;
+				break;
+			}
+		}
+		if (soa == null) {
+			return 0;
+		}
+		long ttl = Math.min(soa.getTtl() & 0xffffffffL, ((DNSRdataSoa) soa.getData()).getMinimum() & 0xffffffffL);
+		// The SOA is handed out with the negative TTL, so downstream caches expire it with us
+		DNSResourceRecord negativeSoa = new DNSResourceRecord(soa.getDomainName(), soa.getType(), soa.getData());
+		negativeSoa.setClass(soa.getCls());
+		negativeSoa.setTtl((int) ttl);
+		List<DNSResourceRecord> authorities = new ArrayList<DNSResourceRecord>();
+		authorities.add(negativeSoa);
+		if (!answers.isEmpty()) {
+			// Name error at the end of a CNAME chain only holds for this question
+			return store(CacheKey.of(question), rcode, answers, authorities, Math.min(ttl, minTtl(answers)), nowMillis);
+		} else if (rcode == DNS.RCODE_NAME_ERROR) {
+			return store(new CacheKey(question.getDomainName(), ANY_TYPE, question.getCls()), rcode, answers, authorities, ttl, nowMillis);
+		} else {
+			return store(CacheKey.of(question), rcode, answers, authorities, ttl, nowMillis);
+		}
+	}
+
+	private long store(CacheKey key, byte rcode, List<DNSResourceRecord> answers, List<DNSResourceRecord> authorities,
+			long ttlSeconds, long nowMillis) {
+		if (ttlSeconds == 0) {
+			return 0;
+		}
+		if (entries.size() >= capacity) {
+			evict(nowMillis);
+		}
+		entries.put(key, new Entry(rcode, copy(answers, 0), copy(authorities, 0), nowMillis, nowMillis + ttlSeconds * 1000));
+		return ttlSeconds;
+	}
+
+	/** Seconds left on a reply built by {@link #get}: its records are aged, so their smallest TTL */
+	static long remainingSeconds(DNS cachedReply) {
+		return Math.min(minTtl(cachedReply.getAnswers()), minTtl(cachedReply.getAuthorities()));
+	}
+
+	/** Drops stale entries, then arbitrary ones, until a tenth of the capacity is free */
+	private void evict(long nowMillis) {
+		int target = capacity - Math.max(1, capacity / 10);
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			if (nowMillis >= it.next().expiresAt) {
+				it.remove();
+			}
+		}
+		it = entries.values().iterator();
+		while (entries.size() > target && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	private static long minTtl(List<DNSResourceRecord> records) {
+		long min = Long.MAX_VALUE;
+		for (DNSResourceRecord record : records) {
+			min = Math.min(min, record.getTtl() & 0xffffffffL);
+		}
+		return min;
+	}
+
+	private static List<DNSResourceRecord> copyStale(List<DNSResourceRecord> records) {
+		List<DNSResourceRecord> copies = copy(records, 0);
+		for (DNSResourceRecord record : copies) {
+			record.setTtl(Math.min(record.getTtl(), STALE_TTL));
+		}
+		return copies;
+	}
+
+	private static List<DNSResourceRecord> copy(List<DNSResourceRecord> records, int aged) {
+		List<DNSResourceRecord> copies = new ArrayList<DNSResourceRecord>(records.size());
+		for (DNSResourceRecord record : records) {
+			DNSResourceRecord copy = new DNSResourceRecord(record.getDomainName(), record.getType(), record.getData());
+			copy.setClass(record.getCls());
+			copy.setTtl(record.getTtl() - aged);
+			copies.add(copy);
+		}
+		return copies;
+	}
+}
@@ -0,0 +1,41 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNSName;
+import edu.wisc.cs.sdn.simpledns.packet.DNSQuestion;
+
+/** Case-insensitive (name, type, class) key shared by the resolver caches */
+final class CacheKey
+{
+	private final DNSName name;
+	private final short type;
+	private final short cls;
+
+	CacheKey(DNSName name, short type, short cls) {
+		this.name = name;
+		this.type = type;
+		this.cls = cls;
+	}
+
+	static CacheKey of(DNSQuestion question) {
+		return new CacheKey(question.getDomainName(), question.getType(), question.getCls());
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof CacheKey)) {
+			return false;
+		}
+		CacheKey other = (CacheKey) o;
+		return type == other.type && cls == other.cls && name.equals(other.name);
+	}
+
+	@Override
+	public int hashCode() {
+		return (31 * type + cls) * 31 + name.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return name + "/" + type + "/" + cls;
+	}
+}
@@ -0,0 +1,40 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that threads add to without contending: each thread adds to one of several cells,
+ * a cache line apart, picked by its ID; reading it sums them. Used for metrics that every
+ * query bumps. (LongAdder does the same, but needs Java 8.)
+ */
+final class Counter
+{
+	/** Cells per counter; a power of two, about twice the cores so that collisions are rare */
+	final static int STRIPES = Math.min(64, Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) << 2);
+	/** Longs per cache line, so that neighbouring cells never share one */
+	private final static int PAD = 8;
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+	/** Stripe of the current thread, 0 to stripes - 1 (a power of two) */
+	static int stripe(int stripes) {
+		long id = Thread.currentThread().getId();
+		return (int) ((id * 0x9e3779b97f4a7c15L) >>> 40) & (stripes - 1);
+	}
+
+	void increment() {
+		cells.getAndIncrement(stripe(STRIPES) * PAD);
+	}
+
+	void add(long n) {
+		cells.getAndAdd(stripe(STRIPES) * PAD, n);
+	}
+
+	long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * PAD);
+		}
+		return sum;
+	}
+}
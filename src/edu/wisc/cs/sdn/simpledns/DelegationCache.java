@@ -0,0 +1,98 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNSName;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Zone cuts learned from referrals: for each zone, the addresses of its name servers taken
+ * from the glue. Resolutions start at the closest cached enclosing zone instead of the root.
+ */
+class DelegationCache
+{
+	static final class Delegation
+	{
+		private final DNSName zone;
+		private final List<InetAddress> servers;
+		private final long expiresAt;
+
+		private Delegation(DNSName zone, List<InetAddress> servers, long expiresAt) {
+			this.zone = zone;
+			this.servers = servers;
+			this.expiresAt = expiresAt;
+		}
+
+		DNSName getZone() {
+			return zone;
+		}
+
+		List<InetAddress> getServers() {
+			return servers;
+		}
+	}
+
+	private final ConcurrentHashMap<DNSName, Delegation> zones = new ConcurrentHashMap<DNSName, Delegation>();
+	private final int capacity;
+
+	DelegationCache(int capacity) {
+		this.capacity = capacity;
+	}
+
+	void put(DNSName zone, List<InetAddress> servers, long ttlSeconds, long nowMillis) {
+		if (servers.isEmpty() || ttlSeconds <= 0) {
+			return;
+		}
+		if (zones.size() >= capacity) {
+			evict(nowMillis);
+		}
+		// Zones are shared by every entry below them, so keep one copy of each
+		DNSName key = zone.intern();
+		zones.put(key, new Delegation(key, servers, nowMillis + ttlSeconds * 1000));
+	}
+
+	/**
+	 * Like {@link #put}, except that an unexpired delegation of zone with more servers is kept,
+	 * for a partial one such as a single name server looked up after a glueless referral
+	 */
+	void putUnlessFuller(DNSName zone, List<InetAddress> servers, long ttlSeconds, long nowMillis) {
+		Delegation existing = zones.get(zone);
+		if (existing != null && nowMillis < existing.expiresAt && existing.servers.size() > servers.size()) {
+			return;
+		}
+		put(zone, servers, ttlSeconds, nowMillis);
+	}
+
+	/** @return the deepest unexpired zone enclosing name, or null if only the root is known */
+	Delegation closest(DNSName name, long nowMillis) {
+		DNSName suffix = name;
+		while (!suffix.isRoot()) {
+			Delegation delegation = zones.get(suffix);
+			if (delegation != null) {
+				if (nowMillis < delegation.expiresAt) {
+					return delegation;
+				}
+				zones.remove(suffix, delegation);
+			}
+			suffix = suffix.parent();
+		}
+		return null;
+	}
+
+	private void evict(long nowMillis) {
+		int target = capacity - Math.max(1, capacity / 10);
+		Iterator<Delegation> it = zones.values().iterator();
+		while (it.hasNext()) {
+			if (nowMillis >= it.next().expiresAt) {
+				it.remove();
+			}
+		}
+		it = zones.values().iterator();
+		while (zones.size() > target && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import java.util.*;
+
+/**
+ * EC2 address ranges flattened into disjoint, sorted intervals over the IPv4 space, each
+ * tagged with the region of the most specific prefix covering it. Built once; a lookup is a
+ * binary search over primitive arrays and allocates nothing.
+ */
+final class Ec2Table
+{
+	/** Interval starts, offset by MIN_VALUE so signed order matches unsigned address order */
+	private final int[] starts;
+	private final int[] ends;
+	private final int[] regionIndexes;
+	private final String[] regions;
+	private int size;
+
+	/** @param prefixes map(ip/subnetLength -> region) as read from the CSV */
+	Ec2Table(Map<String, String> prefixes) {
+		List<long[]> parsed = new ArrayList<long[]>(prefixes.size());
+		List<String> regionNames = new ArrayList<String>();
+		Map<String, Integer> regionIds = new HashMap<String, Integer>();
+		for (Map.Entry<String, String> entry : prefixes.entrySet()) {
+			String prefix = entry.getKey();
+			int slash = prefix.indexOf('/');
+			if (slash < 0) {
+				Log.warn("Skipping malformed EC2 range {}", prefix);
+				continue;
+			}
+			int subnetLength;
+			long network;
+			try {
+				subnetLength = Integer.parseInt(prefix.substring(slash + 1).trim());
+				network = parseIp(prefix.substring(0, slash).trim());
+			} catch (RuntimeException e) {
+				Log.warn("Skipping malformed EC2 range {}", prefix);
+				continue;
+			}
+			if (subnetLength < 0 || subnetLength > 32 || network < 0) {
+				Log.warn("Skipping malformed EC2 range {}", prefix);
+				continue;
+			}
+			long blockSize = 1L << (32 - subnetLength);
+			long start = network & ~(blockSize - 1);
+			Integer region = regionIds.get(entry.getValue());
+			if (region == null) {
+				region = regionNames.size();
+				regionIds.put(entry.getValue(), region);
+				regionNames.add(entry.getValue());
+			}
+			parsed.add(new long[] { start, start + blockSize - 1, region });
+		}
+
+		// Enclosing blocks sort before the blocks nested in them
+		Collections.sort(parsed, new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				if (a[0] != b[0]) {
+					return a[0] < b[0] ? -1 : 1;
+				}
+				return a[1] == b[1] ? 0 : (a[1] > b[1] ? -1 : 1);
+			}
+		});
+
+		// CIDR blocks either nest or are disjoint, so a stack of open blocks yields the intervals
+		int capacity = 2 * parsed.size() + 1;
+		this.starts = new int[capacity];
+		this.ends = new int[capacity];
+		this.regionIndexes = new int[capacity];
+		this.regions = regionNames.toArray(new String[regionNames.size()]);
+		Deque<long[]> open = new ArrayDeque<long[]>();
+		long pos = 0;
+		for (long[] block : parsed) {
+			while (!open.isEmpty() && open.peek()[1] < block[0]) {
+				long[] closed = open.pop();
+				pos = emit(pos, closed[1], closed[2]);
+			}
+			if (!open.isEmpty()) {
+				emit(pos, block[0] - 1, open.peek()[2]);
+			}
+			pos = block[0];
+			open.push(block);
+		}
+		while (!open.isEmpty()) {
+			long[] closed = open.pop();
+			pos = emit(pos, closed[1], closed[2]);
+		}
+	}
+
+	/** Appends [from, to] unless empty; returns the next uncovered address */
+	private long emit(long from, long to, long region) {
+		if (from > to) {
+			return from;
+		}
+		starts[size] = (int) from + Integer.MIN_VALUE;
+		ends[size] = (int) to + Integer.MIN_VALUE;
+		regionIndexes[size] = (int) region;
+		size++;
+		return to + 1;
+	}
+
+	/** Number of disjoint intervals */
+	int size() {
+		return size;
+	}
+
+	/** True if no range was read, so no address is in EC2 */
+	boolean isEmpty() {
+		return regions.length == 0;
+	}
+
+	/** @return index of the region covering ip, or -1 if ip is not in EC2 */
+	int find(int ip) {
+		int key = ip + Integer.MIN_VALUE;
+		int lo = 0;
+		int hi = size - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (starts[mid] <= key) {
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return (hi >= 0 && key <= ends[hi]) ? regionIndexes[hi] : -1;
+	}
+
+	String region(int index) {
+		return regions[index];
+	}
+
+	/** Rough heap size of the table: the interval arrays plus the region names */
+	long footprintBytes() {
+		long bytes = 3L * (16 + 4L * starts.length) + 16 + 4L * regions.length;
+		for (String region : regions) {
+			bytes += 40 + region.length();
+		}
+		return bytes;
+	}
+
+	private static long parseIp(String address) {
+		String[] parts = address.split("\\.");
+		if (parts.length != 4) {
+			return -1;
+		}
+		long result = 0;
+		for (String part : parts) {
+			int octet = Integer.parseInt(part);
+			if (octet < 0 || octet > 255) {
+				return -1;
+			}
+			result = (result << 8) | octet;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,124 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Watches the -e CSV and rebuilds the EC2 table whenever it changes. The new table is built
+ * entirely on this thread and published with a single reference swap, so replies in flight
+ * keep the snapshot they started with and never wait on a reload. A file caught half-written
+ * (empty, not ending in a newline, or changing while read) or holding no valid range is not
+ * published; the current table stays until the next change brings a complete one.
+ */
+class Ec2TableWatcher implements Runnable
+{
+	/** Editors and copies write in several steps; wait for the file to settle */
+	private final static long SETTLE_MILLIS = 200;
+
+	private final Path file;
+	private final AtomicReference<Ec2Table> table;
+
+	Ec2TableWatcher(String file, AtomicReference<Ec2Table> table) {
+		this.file = Paths.get(file).toAbsolutePath();
+		this.table = table;
+	}
+
+	void start() {
+		Thread t = new Thread(this, "ec2-table-watcher");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public void run() {
+		WatchService watcher;
+		try {
+			watcher = file.getFileSystem().newWatchService();
+			// Watch the directory: rename-into-place replaces the file's inode
+			file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException e) {
+			Log.warn("Cannot watch {}, EC2 table will not be reloaded", file, e);
+			return;
+		}
+		Log.info("Watching {} for EC2 table changes", file);
+
+		while (true) {
+			try {
+				WatchKey key = watcher.take();
+				boolean changed = containsFile(key);
+				// Collapse the burst of events a single save produces
+				while ((key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+					changed |= containsFile(key);
+				}
+				if (changed) {
+					reload();
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private boolean containsFile(WatchKey key) {
+		boolean found = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			Object context = event.context();
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW
+					|| (context instanceof Path && file.getFileName().equals(context))) {
+				found = true;
+			}
+		}
+		key.reset();
+		return found;
+	}
+
+	private void reload() {
+		long start = System.nanoTime();
+		Ec2Table loaded;
+		try {
+			long size = Files.size(file);
+			FileTime modified = Files.getLastModifiedTime(file);
+			if (!endsWithNewline(size)) {
+				Log.warn("{} is empty or does not end in a newline, keeping the current EC2 table", file);
+				return;
+			}
+			loaded = SimpleDNS.readEC2Table(file.toString());
+			if (Files.size(file) != size || !Files.getLastModifiedTime(file).equals(modified)) {
+				// Still being written; its next change triggers another reload
+				Log.info("{} changed while being read, keeping the current EC2 table", file);
+				return;
+			}
+		} catch (IOException e) {
+			Log.warn("EC2 table reload failed, keeping the current table: {}", e.getMessage());
+			return;
+		}
+		if (loaded.isEmpty()) {
+			Log.warn("{} holds no valid EC2 range, keeping the current table", file);
+			return;
+		}
+		Ec2Table previous = table.getAndSet(loaded);
+		Log.info("Reloaded EC2 table from {} in {} ms: {} intervals, ~{} KiB (was {} intervals)",
+				file, (System.nanoTime() - start) / 100000 / 10.0, loaded.size(), loaded.footprintBytes() / 1024,
+				previous == null ? 0 : previous.size());
+	}
+
+	/** A complete text file ends in a newline; one still being written usually does not */
+	private boolean endsWithNewline(long size) throws IOException {
+		if (size == 0) {
+			return false;
+		}
+		SeekableByteChannel channel = Files.newByteChannel(file);
+		try {
+			ByteBuffer last = ByteBuffer.allocate(1);
+			channel.position(size - 1).read(last);
+			return last.position() == 1 && last.get(0) == '\n';
+		} finally {
+			channel.close();
+		}
+	}
+}
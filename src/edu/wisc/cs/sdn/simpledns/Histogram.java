@@ -0,0 +1,126 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative longs (latencies in microseconds, hop counts).
+ * Buckets are log-linear: exact below 16, then eight per power of two, so any percentile
+ * read back is within 12.5% of the true value. Recording is one atomic add into the bucket
+ * and one into the sum; with several stripes, threads add into their own copy of the
+ * buckets and {@link #snapshot()} merges them.
+ */
+final class Histogram
+{
+	private final static int SUB_BITS = 3;
+	private final static int SUB_BUCKETS = 1 << SUB_BITS;
+	/** Largest power of two told apart; bigger values land in the last bucket (about 71 minutes in microseconds) */
+	private final static int MAX_EXPONENT = 32;
+	private final static int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+	/** Per stripe: the buckets, then the sum */
+	private final static int STRIPE_LENGTH = BUCKETS + 1;
+
+	/** Merged counts at one point in time */
+	static final class Snapshot
+	{
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+
+		private Snapshot(long[] counts, long sum) {
+			long count = 0;
+			for (long c : counts) {
+				count += c;
+			}
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+		}
+
+		long getCount() {
+			return count;
+		}
+
+		long getSum() {
+			return sum;
+		}
+
+		/**
+		 * @param quantile between 0 and 1
+		 * @return upper bound of the bucket holding that quantile, 0 if nothing was recorded
+		 */
+		long percentile(double quantile) {
+			long rank = (long) Math.ceil(quantile * count);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank && seen > 0) {
+					return upperBound(i);
+				}
+			}
+			return 0;
+		}
+
+		/** Upper bound of the highest bucket used, 0 if nothing was recorded */
+		long max() {
+			for (int i = counts.length - 1; i >= 0; i--) {
+				if (counts[i] > 0) {
+					return upperBound(i);
+				}
+			}
+			return 0;
+		}
+	}
+
+	private final int stripes;
+	private final AtomicLongArray cells;
+
+	/** @param stripes copies of the buckets, a power of two; 1 for rarely contended histograms */
+	Histogram(int stripes) {
+		this.stripes = stripes;
+		this.cells = new AtomicLongArray(stripes * STRIPE_LENGTH);
+	}
+
+	void record(long value) {
+		// A clock step can make an elapsed time negative
+		value = Math.max(0, value);
+		int base = stripes == 1 ? 0 : Counter.stripe(stripes) * STRIPE_LENGTH;
+		cells.getAndIncrement(base + bucket(value));
+		cells.getAndAdd(base + BUCKETS, value);
+	}
+
+	Snapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+		long sum = 0;
+		for (int s = 0; s < stripes; s++) {
+			int base = s * STRIPE_LENGTH;
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] += cells.get(base + i);
+			}
+			sum += cells.get(base + BUCKETS);
+		}
+		return new Snapshot(counts, sum);
+	}
+
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+	}
+
+	private static long lowerBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+	}
+
+	private static long upperBound(int bucket) {
+		return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowerBound(bucket + 1) - 1;
+	}
+}
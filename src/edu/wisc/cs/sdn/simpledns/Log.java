@@ -0,0 +1,308 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Level-based logging off the query path. A call below the current level returns after one
+ * volatile read; one at or above it only drops its format and arguments into a lock-free ring.
+ * A background thread fills in the {} placeholders and writes the lines out, so callers never
+ * format a string or wait on stdout; it sleeps while there is nothing to write, and the next
+ * message wakes it. Arguments are formatted later and must not change after
+ * the call. When the ring is full, messages are dropped and counted instead of blocking; a
+ * Throwable left over after the placeholders is printed with its stack trace.
+ */
+final class Log
+{
+	enum Level
+	{
+		DEBUG, INFO, WARN, ERROR
+	}
+
+	/** Messages held for the writer; a power of two */
+	private final static int CAPACITY = 1 << 14;
+	private final static Object[] NO_ARGS = new Object[0];
+
+	private static final class Entry
+	{
+		private final long time;
+		private final Level level;
+		private final Thread thread;
+		private final String format;
+		private final Object[] args;
+
+		private Entry(Level level, String format, Object[] args) {
+			this.time = System.currentTimeMillis();
+			this.level = level;
+			this.thread = Thread.currentThread();
+			this.format = format;
+			this.args = args;
+		}
+	}
+
+	private static volatile Level threshold = Level.INFO;
+	private final static AtomicReferenceArray<Entry> ring = new AtomicReferenceArray<Entry>(CAPACITY);
+	/** Next sequence producers claim */
+	private final static AtomicLong tail = new AtomicLong();
+	/** Next sequence the writer takes; only advanced while holding out */
+	private static volatile long head;
+	private final static AtomicLong dropped = new AtomicLong();
+	private final static Thread writer;
+	/** Set by the writer before it parks, so the next producer unparks it */
+	private static volatile boolean sleeping;
+
+	private final static PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+			new FileOutputStream(FileDescriptor.out)), 1 << 16), false);
+	private final static SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+	private final static StringBuilder line = new StringBuilder(256);
+
+	static {
+		writer = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					if (!drain()) {
+						sleeping = true;
+						// Checked after announcing the sleep: a message claimed before it is
+						// written now, one claimed after it finds sleeping set and unparks
+						if (tail.get() == head) {
+							LockSupport.park();
+						}
+						sleeping = false;
+					}
+				}
+			}
+		}, "dns-log");
+		writer.setDaemon(true);
+		writer.start();
+		// Whatever is still queued at exit goes out too
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "dns-log-flush"));
+	}
+
+	private Log() {
+	}
+
+	static void setLevel(Level level) {
+		threshold = level;
+	}
+
+	static boolean isEnabled(Level level) {
+		return level.compareTo(threshold) >= 0;
+	}
+
+	static boolean isDebugEnabled() {
+		return threshold == Level.DEBUG;
+	}
+
+	// Fixed arities, so a level that is off allocates no argument array. Primitive arguments are
+	// still boxed before the call; hot paths passing them check isDebugEnabled() first
+
+	static void debug(String message) {
+		if (isDebugEnabled()) {
+			enqueue(Level.DEBUG, message, NO_ARGS);
+		}
+	}
+
+	static void debug(String format, Object arg) {
+		if (isDebugEnabled()) {
+			enqueue(Level.DEBUG, format, new Object[] { arg });
+		}
+	}
+
+	static void debug(String format, Object arg1, Object arg2) {
+		if (isDebugEnabled()) {
+			enqueue(Level.DEBUG, format, new Object[] { arg1, arg2 });
+		}
+	}
+
+	static void debug(String format, Object arg1, Object arg2, Object arg3) {
+		if (isDebugEnabled()) {
+			enqueue(Level.DEBUG, format, new Object[] { arg1, arg2, arg3 });
+		}
+	}
+
+	static void debug(String format, Object... args) {
+		if (isDebugEnabled()) {
+			enqueue(Level.DEBUG, format, args);
+		}
+	}
+
+	static void info(String message) {
+		log(Level.INFO, message, NO_ARGS);
+	}
+
+	static void info(String format, Object arg) {
+		if (isEnabled(Level.INFO)) {
+			enqueue(Level.INFO, format, new Object[] { arg });
+		}
+	}
+
+	static void info(String format, Object arg1, Object arg2) {
+		if (isEnabled(Level.INFO)) {
+			enqueue(Level.INFO, format, new Object[] { arg1, arg2 });
+		}
+	}
+
+	static void info(String format, Object arg1, Object arg2, Object arg3) {
+		if (isEnabled(Level.INFO)) {
+			enqueue(Level.INFO, format, new Object[] { arg1, arg2, arg3 });
+		}
+	}
+
+	static void info(String format, Object... args) {
+		log(Level.INFO, format, args);
+	}
+
+	static void warn(String message) {
+		log(Level.WARN, message, NO_ARGS);
+	}
+
+	static void warn(String format, Object arg) {
+		if (isEnabled(Level.WARN)) {
+			enqueue(Level.WARN, format, new Object[] { arg });
+		}
+	}
+
+	static void warn(String format, Object arg1, Object arg2) {
+		if (isEnabled(Level.WARN)) {
+			enqueue(Level.WARN, format, new Object[] { arg1, arg2 });
+		}
+	}
+
+	static void warn(String format, Object arg1, Object arg2, Object arg3) {
+		if (isEnabled(Level.WARN)) {
+			enqueue(Level.WARN, format, new Object[] { arg1, arg2, arg3 });
+		}
+	}
+
+	static void warn(String format, Object... args) {
+		log(Level.WARN, format, args);
+	}
+
+	static void error(String message) {
+		log(Level.ERROR, message, NO_ARGS);
+	}
+
+	static void error(String format, Object arg) {
+		if (isEnabled(Level.ERROR)) {
+			enqueue(Level.ERROR, format, new Object[] { arg });
+		}
+	}
+
+	static void error(String format, Object arg1, Object arg2) {
+		if (isEnabled(Level.ERROR)) {
+			enqueue(Level.ERROR, format, new Object[] { arg1, arg2 });
+		}
+	}
+
+	static void error(String format, Object arg1, Object arg2, Object arg3) {
+		if (isEnabled(Level.ERROR)) {
+			enqueue(Level.ERROR, format, new Object[] { arg1, arg2, arg3 });
+		}
+	}
+
+	static void error(String format, Object... args) {
+		log(Level.ERROR, format, args);
+	}
+
+	private static void log(Level level, String format, Object[] args) {
+		if (isEnabled(level)) {
+			enqueue(level, format, args);
+		}
+	}
+
+	private static void enqueue(Level level, String format, Object[] args) {
+		Entry entry = new Entry(level, format, args);
+		while (true) {
+			long t = tail.get();
+			if (t - head >= CAPACITY) {
+				dropped.incrementAndGet();
+				return;
+			}
+			if (tail.compareAndSet(t, t + 1)) {
+				// The slot was emptied before head moved past it, so it is ours alone
+				ring.lazySet((int) t & (CAPACITY - 1), entry);
+				if (sleeping) {
+					sleeping = false;
+					LockSupport.unpark(writer);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Writes out everything queued so far.
+	 * @return false if there was nothing to write
+	 */
+	private static boolean drain() {
+		synchronized (out) {
+			boolean wrote = false;
+			while (true) {
+				int slot = (int) head & (CAPACITY - 1);
+				Entry entry = ring.get(slot);
+				if (entry == null) {
+					// Empty, or claimed but not yet stored; picked up on the next pass
+					break;
+				}
+				ring.set(slot, null);
+				head = head + 1;
+				write(entry);
+				wrote = true;
+			}
+			long lost = dropped.getAndSet(0);
+			if (lost > 0) {
+				write(new Entry(Level.WARN, "{} log messages dropped, the log could not keep up", new Object[] { lost }));
+				wrote = true;
+			}
+			if (wrote) {
+				out.flush();
+			}
+			return wrote;
+		}
+	}
+
+	private static void write(Entry entry) {
+		line.setLength(0);
+		line.append(timeFormat.format(new Date(entry.time))).append(' ').append(entry.level).append(" [")
+				.append(entry.thread.getName()).append("] ");
+		int used = 0;
+		try {
+			used = format(line, entry.format, entry.args);
+		} catch (RuntimeException e) {
+			// An argument's toString failed; the line still goes out
+			line.append(" <").append(e).append('>');
+		}
+		out.println(line);
+		if (used < entry.args.length && entry.args[entry.args.length - 1] instanceof Throwable) {
+			((Throwable) entry.args[entry.args.length - 1]).printStackTrace(out);
+		}
+	}
+
+	/**
+	 * Appends format to line with each {} replaced by the next argument.
+	 * @return the number of arguments used
+	 */
+	private static int format(StringBuilder line, String format, Object[] args) {
+		int used = 0;
+		int from = 0;
+		int at;
+		while (used < args.length && (at = format.indexOf("{}", from)) >= 0) {
+			line.append(format, from, at).append(args[used++]);
+			from = at + 2;
+		}
+		line.append(format, from, format.length());
+		return used;
+	}
+}
@@ -0,0 +1,266 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNS;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * What the resolver has been doing: client queries by type and their end-to-end latency, cache
+ * hits, resolutions and their referral depth, upstream queries, timeouts and RTT per server,
+ * and EC2 classifications. Recording is a striped counter or histogram add, cheap enough to
+ * stay on. Everything is read through {@link #snapshot()}, served as attributes over JMX and
+ * as plain text by {@link MetricsEndpoint}. Latencies are in microseconds.
+ */
+final class Metrics implements DynamicMBean
+{
+	/** Servers with their own RTT histogram; later ones only count towards the totals */
+	private final static int MAX_SERVERS = 1000;
+	private final static double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private static final class Server
+	{
+		private final Histogram rtt = new Histogram(1);
+		private final AtomicLong timeouts = new AtomicLong();
+	}
+
+	private final long startedAt = System.currentTimeMillis();
+	private final Counter queriesA = new Counter();
+	private final Counter queriesNs = new Counter();
+	private final Counter queriesCname = new Counter();
+	private final Counter queriesAaaa = new Counter();
+	private final Counter queriesOther = new Counter();
+	private final Counter dropped = new Counter();
+	private final Histogram latency = new Histogram(Counter.STRIPES);
+	private final Counter wireCacheHits = new Counter();
+	private final Counter cacheHits = new Counter();
+	private final Counter staleAnswers = new Counter();
+	private final Counter answered = new Counter();
+	private final Counter failed = new Counter();
+	private final Histogram referralDepth = new Histogram(Counter.STRIPES);
+	private final Counter upstreamQueries = new Counter();
+	private final Counter hedged = new Counter();
+	private final Counter tcpRetries = new Counter();
+	private final Counter timeouts = new Counter();
+	private final Histogram upstreamRtt = new Histogram(Counter.STRIPES);
+	private final ConcurrentHashMap<InetAddress, Server> servers = new ConcurrentHashMap<InetAddress, Server>();
+	private final Counter ec2Checked = new Counter();
+	private final Counter ec2Hits = new Counter();
+	/** Source of the prefetch counts, or null without prefetching */
+	private volatile RefreshAhead refreshAhead;
+
+	void setRefreshAhead(RefreshAhead refreshAhead) {
+		this.refreshAhead = refreshAhead;
+	}
+
+	/** A client query of the given question type came in */
+	void onQuery(short type) {
+		switch (type) {
+		case DNS.TYPE_A:
+			queriesA.increment();
+			break;
+		case DNS.TYPE_NS:
+			queriesNs.increment();
+			break;
+		case DNS.TYPE_CNAME:
+			queriesCname.increment();
+			break;
+		case DNS.TYPE_AAAA:
+			queriesAaaa.increment();
+			break;
+		default:
+			queriesOther.increment();
+		}
+	}
+
+	/** A query was dropped because the engine was saturated */
+	void onDropped() {
+		dropped.increment();
+	}
+
+	/** A client got its reply, receivedAt (nanoTime) after its query arrived */
+	void onReplied(long receivedAt) {
+		latency.record((System.nanoTime() - receivedAt) / 1000);
+	}
+
+	void onWireCacheHit() {
+		wireCacheHits.increment();
+	}
+
+	void onCacheHit() {
+		cacheHits.increment();
+	}
+
+	void onStaleAnswer() {
+		staleAnswers.increment();
+	}
+
+	/**
+	 * A resolution ended.
+	 * @param referrals referrals it received on the way, its depth below where it started
+	 */
+	void onResolution(boolean success, int referrals) {
+		(success ? answered : failed).increment();
+		referralDepth.record(referrals);
+	}
+
+	void onUpstreamQuery() {
+		upstreamQueries.increment();
+	}
+
+	void onHedge() {
+		hedged.increment();
+	}
+
+	void onTcpRetry() {
+		tcpRetries.increment();
+	}
+
+	void onUpstreamResponse(InetAddress server, long rttMicros) {
+		upstreamRtt.record(rttMicros);
+		Server s = server(server);
+		if (s != null) {
+			s.rtt.record(rttMicros);
+		}
+	}
+
+	void onUpstreamTimeout(InetAddress server) {
+		timeouts.increment();
+		Server s = server(server);
+		if (s != null) {
+			s.timeouts.incrementAndGet();
+		}
+	}
+
+	/** An answer address was looked up in the EC2 table */
+	void onEc2Check(boolean hit) {
+		ec2Checked.increment();
+		if (hit) {
+			ec2Hits.increment();
+		}
+	}
+
+	private Server server(InetAddress address) {
+		Server s = servers.get(address);
+		if (s == null) {
+			if (servers.size() >= MAX_SERVERS) {
+				return null;
+			}
+			Server fresh = new Server();
+			s = servers.putIfAbsent(address, fresh);
+			if (s == null) {
+				s = fresh;
+			}
+		}
+		return s;
+	}
+
+	/** Every metric by name, Prometheus style, in a stable order; totals count since start */
+	Map<String, Number> snapshot() {
+		Map<String, Number> m = new LinkedHashMap<String, Number>();
+		m.put("uptime_seconds", (System.currentTimeMillis() - startedAt) / 1000);
+		m.put("queries_total{type=\"A\"}", queriesA.sum());
+		m.put("queries_total{type=\"NS\"}", queriesNs.sum());
+		m.put("queries_total{type=\"CNAME\"}", queriesCname.sum());
+		m.put("queries_total{type=\"AAAA\"}", queriesAaaa.sum());
+		m.put("queries_total{type=\"other\"}", queriesOther.sum());
+		m.put("queries_dropped_total", dropped.sum());
+		putSummary(m, "reply_latency_microseconds", "", latency.snapshot());
+		m.put("cache_hits_total{cache=\"wire\"}", wireCacheHits.sum());
+		m.put("cache_hits_total{cache=\"answer\"}", cacheHits.sum());
+		m.put("stale_answers_total", staleAnswers.sum());
+		RefreshAhead prefetch = refreshAhead;
+		if (prefetch != null) {
+			m.put("prefetches_total{outcome=\"started\"}", prefetch.getStarted());
+			m.put("prefetches_total{outcome=\"skipped\"}", prefetch.getDropped());
+		}
+		m.put("resolutions_total{outcome=\"answered\"}", answered.sum());
+		m.put("resolutions_total{outcome=\"failed\"}", failed.sum());
+		putSummary(m, "referral_depth", "", referralDepth.snapshot());
+		m.put("upstream_queries_total", upstreamQueries.sum());
+		m.put("upstream_hedged_total", hedged.sum());
+		m.put("upstream_tcp_retries_total", tcpRetries.sum());
+		m.put("upstream_timeouts_total", timeouts.sum());
+		putSummary(m, "upstream_rtt_microseconds", "", upstreamRtt.snapshot());
+		List<InetAddress> addresses = new ArrayList<InetAddress>(servers.keySet());
+		for (InetAddress address : addresses) {
+			Server s = servers.get(address);
+			String label = "server=\"" + address.getHostAddress() + "\"";
+			putSummary(m, "upstream_rtt_microseconds", label, s.rtt.snapshot());
+			m.put("upstream_timeouts_total{" + label + "}", s.timeouts.get());
+		}
+		m.put("ec2_checks_total", ec2Checked.sum());
+		m.put("ec2_hits_total", ec2Hits.sum());
+		return m;
+	}
+
+	/** Quantiles, count and sum of a histogram; labels go before the quantile, comma-separated */
+	private static void putSummary(Map<String, Number> m, String name, String labels, Histogram.Snapshot h) {
+		String prefix = labels.isEmpty() ? "" : labels + ",";
+		for (double q : QUANTILES) {
+			m.put(name + "{" + prefix + "quantile=\"" + q + "\"}", h.percentile(q));
+		}
+		String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+		m.put(name + "_count" + suffix, h.getCount());
+		m.put(name + "_sum" + suffix, h.getSum());
+	}
+
+	// DynamicMBean: every metric is a read-only attribute under its snapshot name
+
+	public Object getAttribute(String name) throws AttributeNotFoundException {
+		Number value = snapshot().get(name);
+		if (value == null) {
+			throw new AttributeNotFoundException(name);
+		}
+		return value;
+	}
+
+	public AttributeList getAttributes(String[] names) {
+		Map<String, Number> m = snapshot();
+		AttributeList list = new AttributeList();
+		for (String name : names) {
+			Number value = m.get(name);
+			if (value != null) {
+				list.add(new Attribute(name, value));
+			}
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(action));
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		Map<String, Number> m = snapshot();
+		MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[m.size()];
+		int i = 0;
+		for (String name : m.keySet()) {
+			attributes[i++] = new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false);
+		}
+		return new MBeanInfo(getClass().getName(), "SimpleDNS resolver metrics", attributes, null,
+				new MBeanOperationInfo[0], null);
+	}
+}
@@ -0,0 +1,83 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Plain-text scrape endpoint on the loopback interface. Any HTTP request gets the current
+ * {@link Metrics#snapshot()}, one "name value" line per metric, which Prometheus and curl
+ * both read. Scrapes are served one at a time on a single thread; they are rare and small.
+ */
+final class MetricsEndpoint implements Runnable
+{
+	/** A scraper that sends no request within this long is cut off */
+	private final static int READ_TIMEOUT_MILLIS = 2000;
+
+	private final ServerSocket serverSocket;
+	private final Metrics metrics;
+
+	MetricsEndpoint(int port, Metrics metrics) throws IOException {
+		this.serverSocket = new ServerSocket();
+		this.serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		this.metrics = metrics;
+	}
+
+	void start() {
+		Thread t = new Thread(this, "dns-metrics");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public void run() {
+		Log.info("Serving metrics on http://{}/metrics", serverSocket.getLocalSocketAddress());
+		while (true) {
+			Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				Log.error("Metrics endpoint stopped", e);
+				return;
+			}
+			try {
+				serve(socket);
+			} catch (IOException e) {
+				Log.debug("Metrics scrape from {} failed: {}", socket.getRemoteSocketAddress(), e.getMessage());
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// Nothing left to release
+				}
+			}
+		}
+	}
+
+	private void serve(Socket socket) throws IOException {
+		socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+		// Whatever was asked for, the answer is the same
+		String line;
+		while ((line = in.readLine()) != null && !line.isEmpty()) {
+			// Request line and headers are not needed
+		}
+		StringBuilder body = new StringBuilder(4096);
+		for (Map.Entry<String, Number> metric : metrics.snapshot().entrySet()) {
+			body.append(metric.getKey()).append(' ').append(metric.getValue()).append('\n');
+		}
+		byte[] content = body.toString().getBytes(StandardCharsets.US_ASCII);
+		String head = "HTTP/1.0 200 OK\r\nContent-Type: text/plain; version=0.0.4\r\nContent-Length: "
+				+ content.length + "\r\nConnection: close\r\n\r\n";
+		OutputStream out = socket.getOutputStream();
+		out.write(head.getBytes(StandardCharsets.US_ASCII));
+		out.write(content);
+		out.flush();
+	}
+}
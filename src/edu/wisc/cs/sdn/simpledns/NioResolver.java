@@ -0,0 +1,378 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event-loop resolution engine. Each loop owns one non-blocking upstream channel on a random
+ * port and keeps every outstanding upstream query in a transaction table keyed by (ID,
+ * question), checked against the server and port asked, so thousands of recursions share one
+ * thread and one socket. Timeouts come from a timer wheel, which also fires hedged copies of a
+ * query when its server is slower than usual.
+ */
+class NioResolver implements Runnable
+{
+	private final static long TICK_MILLIS = 10;
+	private final static int WHEEL_SLOTS = 1024;
+	private final static int MAX_ID_ATTEMPTS = 16;
+
+	/** Upstream transaction: the outstanding query of one resolution, and its hedged copies */
+	private static final class Transaction
+	{
+		private final Resolution resolution;
+		private final ReplyTarget client;
+		private DNS query;
+		private boolean finished;
+		/** Every copy of the query in flight, each under its own ID */
+		private final List<TransactionKey> keys = new ArrayList<TransactionKey>(2);
+		/** When the next copy goes out (Long.MAX_VALUE for none), and when the hop times out */
+		private long hedgeAt;
+		private long deadline;
+		private TimerWheel.Timeout<Transaction> timeout;
+
+		private Transaction(Resolution resolution, ReplyTarget client) {
+			this.resolution = resolution;
+			this.client = client;
+		}
+	}
+
+	/** One copy of a transaction's query, sent to server */
+	private static final class Attempt
+	{
+		private final Transaction transaction;
+		private final InetAddress server;
+
+		private Attempt(Transaction transaction, InetAddress server) {
+			this.transaction = transaction;
+			this.server = server;
+		}
+	}
+
+	/** Outcome of asking a server over TCP after it truncated its UDP reply */
+	private static final class TcpReply
+	{
+		private final Transaction transaction;
+		/** Null if the TCP exchange failed */
+		private final DNS response;
+		private final InetAddress server;
+
+		private TcpReply(Transaction transaction, DNS response, InetAddress server) {
+			this.transaction = transaction;
+			this.response = response;
+			this.server = server;
+		}
+	}
+
+	private static final class TransactionKey
+	{
+		private final short id;
+		private final DNSName name;
+		private final short type;
+
+		private TransactionKey(short id, DNSName name, short type) {
+			this.id = id;
+			this.name = name;
+			this.type = type;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof TransactionKey)) {
+				return false;
+			}
+			TransactionKey other = (TransactionKey) o;
+			return id == other.id && type == other.type && name.equals(other.name);
+		}
+
+		@Override
+		public int hashCode() {
+			return (31 * id + type) * 31 + name.hashCode();
+		}
+	}
+
+	private final String name;
+	private final UpstreamTcp tcp;
+	private final int hedgeCopies;
+	private final int maxInFlight;
+	private final Selector selector;
+	private final DatagramChannel channel;
+	private final Queue<Transaction> submissions = new ConcurrentLinkedQueue<Transaction>();
+	private final Queue<TcpReply> tcpReplies = new ConcurrentLinkedQueue<TcpReply>();
+	private final AtomicInteger accepted = new AtomicInteger();
+	private final Map<TransactionKey, Attempt> inFlight = new HashMap<TransactionKey, Attempt>();
+	private final TimerWheel<Transaction> timers;
+	private final ByteBuffer receiveBuffer = ByteBuffer.allocate(SimpleDNS.MAX_PACKET_SIZE);
+	private final List<Transaction> expired = new ArrayList<Transaction>();
+
+	/**
+	 * @param tcp where truncated replies are retried, off this loop's thread
+	 * @param hedgeCopies servers one query may be sent to per hop, 1 for no hedging
+	 */
+	NioResolver(String name, UpstreamTcp tcp, int hedgeCopies, int maxInFlight) throws IOException {
+		this.name = name;
+		this.tcp = tcp;
+		this.hedgeCopies = hedgeCopies;
+		this.maxInFlight = maxInFlight;
+		this.selector = Selector.open();
+		this.channel = DatagramChannel.open();
+		this.channel.configureBlocking(false);
+		UpstreamSockets.bindRandomPort(this.channel);
+		this.channel.register(selector, SelectionKey.OP_READ);
+		this.timers = new TimerWheel<Transaction>(WHEEL_SLOTS, TICK_MILLIS, System.currentTimeMillis());
+	}
+
+	void start() {
+		Thread t = new Thread(this, name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Hands the resolution of a client query to this loop. Called from the receive thread.
+	 * @return false if the loop already carries its maximum number of resolutions
+	 */
+	boolean submit(Resolution resolution, ReplyTarget client) {
+		if (accepted.incrementAndGet() > maxInFlight) {
+			accepted.decrementAndGet();
+			return false;
+		}
+		submissions.offer(new Transaction(resolution, client));
+		selector.wakeup();
+		return true;
+	}
+
+	public void run() {
+		Log.info("{} started", name);
+		while (true) {
+			try {
+				selector.select(TICK_MILLIS);
+				selector.selectedKeys().clear();
+				Transaction submitted;
+				while ((submitted = submissions.poll()) != null) {
+					try {
+						send(submitted);
+					} catch (RuntimeException e) {
+						fail(submitted, e);
+					}
+				}
+				receive();
+				TcpReply tcpReply;
+				while ((tcpReply = tcpReplies.poll()) != null) {
+					try {
+						if (tcpReply.response != null) {
+							step(tcpReply.transaction, tcpReply.response, tcpReply.server);
+						} else {
+							timedOut(tcpReply.transaction);
+						}
+					} catch (RuntimeException e) {
+						fail(tcpReply.transaction, e);
+					}
+				}
+				long now = System.currentTimeMillis();
+				timers.expire(now, expired);
+				for (Transaction t : expired) {
+					try {
+						if (now < t.deadline) {
+							hedge(t, now);
+							continue;
+						}
+						forget(t);
+						timedOut(t);
+					} catch (RuntimeException e) {
+						fail(t, e);
+					}
+				}
+				expired.clear();
+			} catch (IOException e) {
+				Log.error("{} failed to poll its channel", name, e);
+			} catch (RuntimeException e) {
+				// Failing a transaction failed too; the loop still has others to serve
+				Log.error("{} failed", name, e);
+			}
+		}
+	}
+
+	private void receive() throws IOException {
+		while (true) {
+			receiveBuffer.clear();
+			InetSocketAddress from = (InetSocketAddress) channel.receive(receiveBuffer);
+			if (from == null) {
+				return;
+			}
+			// Match on the raw header and question; only replies we are waiting for get decoded
+			DNSView view = DNSView.wrap(receiveBuffer.array(), receiveBuffer.position());
+			if (view == null || view.isQuery() || view.getQuestionCount() == 0 || !view.isWellFormed()) {
+				// Truncated or garbage datagram
+				continue;
+			}
+			Attempt attempt;
+			DNS response;
+			try {
+				attempt = inFlight.get(new TransactionKey(view.getId(), view.getQuestionName(0), view.getQuestionType(0)));
+				if (attempt == null || from.getPort() != SimpleDNS.QUERY_DNS_PORT || !from.getAddress().equals(attempt.server)) {
+					// Late, duplicate or spoofed reply
+					continue;
+				}
+				response = view.toDNS();
+			} catch (RuntimeException e) {
+				// Undecodable, e.g. a compression pointer loop
+				continue;
+			}
+			Transaction t = attempt.transaction;
+			// First answer wins; the other copies' replies now count as late
+			forget(t);
+			timers.cancel(t.timeout);
+			Log.debug("Received back from server: {}", attempt.server);
+
+			try {
+				if (response.isTruncated()) {
+					retryOverTcp(t, attempt.server);
+				} else {
+					step(t, response, attempt.server);
+				}
+			} catch (RuntimeException e) {
+				fail(t, e);
+			}
+		}
+	}
+
+	/** Asks server again over TCP on another thread; the outcome comes back through tcpReplies */
+	private void retryOverTcp(final Transaction t, final InetAddress server) {
+		Log.debug("Truncated answer from server {}, retrying over TCP", server);
+		SimpleDNS.metrics.onTcpRetry();
+		boolean queued = tcp.exchangeLater(t.query, server, t.resolution.getTimeout(), new UpstreamTcp.Callback() {
+			public void onResponse(DNS response) {
+				tcpReplies.offer(new TcpReply(t, response, server));
+				selector.wakeup();
+			}
+		});
+		if (!queued) {
+			timedOut(t);
+		}
+	}
+
+	/** No usable answer came for the current query; moves on to the next server, if any */
+	private void timedOut(Transaction t) {
+		t.resolution.onTimeout();
+		if (t.resolution.isDone()) {
+			Log.debug("-----------------Query failed--------------------");
+			finish(t);
+		} else {
+			send(t);
+		}
+	}
+
+	private void step(Transaction t, DNS response, InetAddress server) {
+		try {
+			DNS reply = t.resolution.onResponse(response, server);
+			if (reply != null) {
+				SimpleDNS.finishDnsQuery(t.resolution.getClientQuery(), reply, t.client);
+				finish(t);
+			} else if (t.resolution.isDone()) {
+				Log.debug("-----------------Query failed--------------------");
+				finish(t);
+			} else {
+				send(t);
+			}
+		} catch (IOException e) {
+			Log.error("Reply to query {} failed", t.resolution.getClientQuery().getId(), e);
+			finish(t);
+		}
+	}
+
+	private void send(Transaction t) {
+		t.query = t.resolution.nextQuery();
+		if (!sendCopy(t, t.resolution.getServerAddress())) {
+			finish(t);
+			return;
+		}
+		long now = System.currentTimeMillis();
+		t.deadline = now + t.resolution.getTimeout();
+		t.hedgeAt = hedgeCopies > 1 ? now + t.resolution.getHedgeDelay() : Long.MAX_VALUE;
+		t.timeout = timers.schedule(t, Math.min(t.hedgeAt, t.deadline) - now, now);
+	}
+
+	/** The current server is slow: sends the query to the next best one too, then waits on all */
+	private void hedge(Transaction t, long now) {
+		InetAddress server = t.resolution.hedge(hedgeCopies);
+		if (server != null && sendCopy(t, server)) {
+			t.hedgeAt = now + t.resolution.getHedgeDelay();
+		} else {
+			t.hedgeAt = Long.MAX_VALUE;
+		}
+		t.timeout = timers.schedule(t, Math.min(t.hedgeAt, t.deadline) - now, now);
+	}
+
+	/**
+	 * Sends t's query to server under a fresh transaction ID.
+	 * @return false if no ID was free
+	 */
+	private boolean sendCopy(Transaction t, InetAddress server) {
+		DNSQuestion q = t.resolution.getQuestion();
+		TransactionKey key = null;
+		for (int i = 0; i < MAX_ID_ATTEMPTS && key == null; i++) {
+			key = new TransactionKey((short) RandomIds.nextShort(), q.getDomainName(), q.getType());
+			if (inFlight.containsKey(key)) {
+				key = null;
+			}
+		}
+		if (key == null) {
+			Log.warn("No free transaction ID for {}", q.getName());
+			return false;
+		}
+		t.query.setId(key.id);
+		t.keys.add(key);
+		inFlight.put(key, new Attempt(t, server));
+		SendBuffer out = SendBuffer.acquire();
+		try {
+			// A full send buffer just looks like a lost datagram; the timer will fail it
+			channel.send(out.encode(t.query), new InetSocketAddress(server, SimpleDNS.QUERY_DNS_PORT));
+		} catch (IOException e) {
+			Log.debug("Failed to send query to {}: {}", server, e.getMessage());
+		} finally {
+			out.release();
+		}
+		return true;
+	}
+
+	/** Stops matching replies to any copy of t's current query */
+	private void forget(Transaction t) {
+		for (TransactionKey key : t.keys) {
+			inFlight.remove(key);
+		}
+		t.keys.clear();
+	}
+
+	/** Frees t's slot; a no-op for its waiters if the reply already went out */
+	private void finish(Transaction t) {
+		if (t.finished) {
+			return;
+		}
+		t.finished = true;
+		SimpleDNS.abandonDnsQuery(t.resolution.getClientQuery());
+		accepted.decrementAndGet();
+	}
+
+	/** Ends t after its resolution threw, so the loop and t's clients carry on; they get SERVFAIL */
+	private void fail(Transaction t, RuntimeException e) {
+		Log.error("Resolution of query {} failed", t.resolution.getClientQuery().getId(), e);
+		forget(t);
+		if (t.timeout != null) {
+			timers.cancel(t.timeout);
+		}
+		if (!t.finished) {
+			SimpleDNS.failDnsQuery(t.resolution.getClientQuery(), t.client);
+		}
+		finish(t);
+	}
+}
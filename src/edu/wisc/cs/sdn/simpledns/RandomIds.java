@@ -0,0 +1,49 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import java.security.SecureRandom;
+
+/**
+ * Unpredictable transaction IDs and source ports for upstream queries, which together are all
+ * that keeps an off-path attacker from spoofing a reply. ThreadLocalRandom is fast, but a few
+ * of its outputs give away the rest, so these come from SecureRandom. That is too slow to call
+ * per query, so each thread fetches a block of random bytes at a time and hands them out in pairs.
+ */
+final class RandomIds
+{
+	/** Random bytes fetched per refill, enough for 256 values */
+	private final static int BLOCK_BYTES = 512;
+	private final static SecureRandom source = new SecureRandom();
+	private final static ThreadLocal<RandomIds> perThread = new ThreadLocal<RandomIds>() {
+		@Override
+		protected RandomIds initialValue() {
+			return new RandomIds();
+		}
+	};
+
+	private final byte[] block = new byte[BLOCK_BYTES];
+	private int next = BLOCK_BYTES;
+
+	private RandomIds() {
+	}
+
+	/** A random 16-bit value, 0 to 65535 */
+	static int nextShort() {
+		RandomIds ids = perThread.get();
+		if (ids.next == BLOCK_BYTES) {
+			source.nextBytes(ids.block);
+			ids.next = 0;
+		}
+		int value = (ids.block[ids.next] & 0xff) << 8 | (ids.block[ids.next + 1] & 0xff);
+		ids.next += 2;
+		return value;
+	}
+
+	/** A random port from min to 65535, every one equally likely */
+	static int nextPort(int min) {
+		int port;
+		do {
+			port = nextShort();
+		} while (port < min);
+		return port;
+	}
+}
@@ -0,0 +1,71 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNSQuestion;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when a cache hit should refresh its entry ahead of expiry: once the entry has been
+ * hit often enough and a set share of its TTL has gone by. At most one refresh per entry is
+ * started; the fresh reply replaces it, so popular names are re-resolved before anyone misses.
+ */
+final class RefreshAhead
+{
+	/** Hits before an entry counts as popular enough to refresh */
+	private final static int MIN_HITS = 8;
+
+	private final int percent;
+	private final AtomicLong started = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/** @param percent share of the TTL, 1 to 99, after which hits trigger a refresh */
+	RefreshAhead(int percent) {
+		this.percent = percent;
+	}
+
+	/**
+	 * Counts a hit on an entry.
+	 * @return true if the caller should refresh it now; true once per entry, unless
+	 *         {@link #refresh} could not start that refresh
+	 */
+	boolean onHit(AtomicInteger hits, AtomicBoolean refreshing, long storedAt, long expiresAt, long nowMillis) {
+		if (hits.incrementAndGet() < MIN_HITS) {
+			return false;
+		}
+		if ((nowMillis - storedAt) * 100 < (expiresAt - storedAt) * percent) {
+			return false;
+		}
+		return refreshing.compareAndSet(false, true);
+	}
+
+	/**
+	 * Re-resolves question in the background; the result replaces the cached entries.
+	 * @param refreshing the entry's flag set by {@link #onHit}; cleared again if no refresh
+	 *        starts, so a later hit can retry before the entry expires
+	 */
+	void refresh(DNSQuestion question, AtomicBoolean refreshing) {
+		if (!SimpleDNS.prefetchDnsQuery(question)) {
+			refreshing.set(false);
+		}
+	}
+
+	void countStarted() {
+		started.incrementAndGet();
+	}
+
+	void countDropped() {
+		dropped.incrementAndGet();
+	}
+
+	/** Refreshes handed to a worker */
+	long getStarted() {
+		return started.get();
+	}
+
+	/** Refreshes skipped because the prefetch workers were saturated */
+	long getDropped() {
+		return dropped.get();
+	}
+}
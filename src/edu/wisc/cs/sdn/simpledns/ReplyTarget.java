@@ -0,0 +1,17 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import java.io.IOException;
+
+/**
+ * Where a client query came from, and so where its reply goes: a UDP client's address or the
+ * TCP connection the query was read from. Equal targets are the same client, so a retransmitted
+ * query can be recognised as one.
+ */
+interface ReplyTarget
+{
+	/** True if replies go over a stream, which takes them at any length */
+	boolean isStream();
+
+	/** Sends one encoded reply; a datagram longer than the client takes has to be cut down first */
+	void send(byte[] message, int length) throws IOException;
+}
@@ -0,0 +1,506 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.*;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * State of one iterative resolution, from the client's query down to the final answer.
+ * The engines only move packets: they send {@link #nextQuery()} to {@link #getServerAddress()},
+ * and to {@link #hedge(int)}'s pick if that server is slow, and feed the first response back to
+ * {@link #onResponse(DNS, InetAddress)}. A referral without glue suspends the resolution while
+ * the address of one of its name servers is resolved the same way.
+ */
+class Resolution
+{
+	private final static int MAX_HOPS = 32;
+	/** Glueless referrals that may be chased inside one another */
+	private final static int MAX_DEPTH = 4;
+
+	/** A resolution waiting for the address of a name server of zone */
+	private static final class Suspended
+	{
+		private final DNSQuestion question;
+		private final List<DNSResourceRecord> cnameChain;
+		private final DNSName zone;
+		private final long nsTtl;
+		/** Name servers of zone not tried yet */
+		private final Deque<DNSName> nameServers;
+
+		private Suspended(DNSQuestion question, List<DNSResourceRecord> cnameChain, DNSName zone, long nsTtl,
+				Deque<DNSName> nameServers) {
+			this.question = question;
+			this.cnameChain = cnameChain;
+			this.zone = zone;
+			this.nsTtl = nsTtl;
+			this.nameServers = nameServers;
+		}
+	}
+
+	private final DNS clientQuery;
+	private final List<InetAddress> roots;
+	private final DelegationCache delegations;
+	private final ServerStats stats;
+	private final Deque<Suspended> suspended = new ArrayDeque<Suspended>();
+	private List<DNSResourceRecord> cnameChain = new ArrayList<DNSResourceRecord>();
+	private DNSQuestion question;
+	/** Servers that can answer the current question; the current one is the best of them */
+	private List<InetAddress> candidates;
+	/** Zone the candidates serve; only referrals to a zone strictly below it are followed */
+	private DNSName zone;
+	/**
+	 * Set while the candidates are the address found for one glueless name server of zone:
+	 * the referral's other name servers, to look up if that address fails
+	 */
+	private Suspended fallback;
+	private InetAddress serverAddress;
+	/** Servers asked the current question so far, with when (nanoTime); more than one if hedged */
+	private final Map<InetAddress, Long> sentAt = new HashMap<InetAddress, Long>();
+	/** UDP payload size advertised upstream with EDNS, 0 to send plain queries */
+	private int udpPayloadSize;
+	private int hops;
+	/** Referrals received so far, the depth below where the resolution started */
+	private int referrals;
+	private boolean done;
+
+	/**
+	 * @param delegations known zone cuts to start from, or null to always start at the root
+	 * @param stats RTTs to choose servers and timeouts by, or null to take servers in order
+	 * @param udpPayloadSize receive size to advertise upstream (EDNS), or 0 for none
+	 */
+	Resolution(DNS clientQuery, RootHints roots, DelegationCache delegations, ServerStats stats,
+			int udpPayloadSize) {
+		this.clientQuery = clientQuery;
+		this.udpPayloadSize = udpPayloadSize;
+		this.roots = roots.getServers();
+		this.delegations = delegations;
+		this.stats = stats;
+		this.question = clientQuery.getQuestions().get(0);
+		if (clientQuery.isRecursionDesired()) {
+			startAt(question.getDomainName());
+		} else {
+			useServers(DNSName.ROOT, this.roots);
+		}
+	}
+
+	DNS getClientQuery() {
+		return clientQuery;
+	}
+
+	/**
+	 * Question currently being asked; differs from the client's once a CNAME is followed or
+	 * while a name server's address is looked up
+	 */
+	DNSQuestion getQuestion() {
+		return question;
+	}
+
+	InetAddress getServerAddress() {
+		return serverAddress;
+	}
+
+	/** Milliseconds to wait for the current server before {@link #onTimeout()} */
+	int getTimeout() {
+		return stats != null ? stats.timeout(serverAddress) : SimpleDNS.MAX_TIME_OUT;
+	}
+
+	/** Milliseconds to wait for the current server before {@link #hedge(int)} */
+	int getHedgeDelay() {
+		return stats != null ? stats.hedgeDelay(serverAddress) : SimpleDNS.MAX_TIME_OUT;
+	}
+
+	/**
+	 * Picks the next best server to also send the current query to, when the first one is slow.
+	 * @return its address, or null if maxCopies servers were asked already or none is left
+	 */
+	InetAddress hedge(int maxCopies) {
+		if (sentAt.size() >= maxCopies) {
+			return null;
+		}
+		List<InetAddress> untried = new ArrayList<InetAddress>(candidates);
+		untried.removeAll(sentAt.keySet());
+		if (untried.isEmpty()) {
+			return null;
+		}
+		InetAddress hedged = stats != null ? stats.best(untried, System.currentTimeMillis()) : untried.get(0);
+		sentAt.put(hedged, System.nanoTime());
+		SimpleDNS.metrics.onHedge();
+		Log.debug("Hedging query to server {}", hedged);
+		return hedged;
+	}
+
+	/** True if server was asked the current question, so a response from it is expected */
+	boolean isAsked(InetAddress server) {
+		return sentAt.containsKey(server);
+	}
+
+	/** True once a reply was produced or the resolution gave up */
+	boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Builds the iterative query for the current server, which engines send right away.
+	 * Engines may override the ID.
+	 */
+	DNS nextQuery() {
+		sentAt.clear();
+		sentAt.put(serverAddress, System.nanoTime());
+		DNS query = new DNS();
+		query.setId(clientQuery.getId());
+		query.setQuery(true);
+		query.setOpcode(DNS.OPCODE_STANDARD_QUERY);
+		query.setRecursionDesired(false);
+		query.addQuestion(question);
+		if (udpPayloadSize > 0) {
+			query.setUdpPayloadSize(udpPayloadSize);
+		}
+		SimpleDNS.metrics.onUpstreamQuery();
+		return query;
+	}
+
+	/**
+	 * Consumes the first response to the current query, from whichever server was asked.
+	 * @return the reply for the client, or null if another query has to be sent
+	 *         (or, when {@link #isDone()} is set, if resolution failed)
+	 */
+	DNS onResponse(DNS response, InetAddress from) {
+		Long sent = sentAt.get(from);
+		if (sent != null) {
+			long rttMicros = (System.nanoTime() - sent) / 1000;
+			SimpleDNS.metrics.onUpstreamResponse(from, rttMicros);
+			if (stats != null) {
+				stats.onResponse(from, rttMicros / 1000);
+			}
+		}
+		if (udpPayloadSize > 0 && response.getRcode() == DNS.RCODE_FORMAT_ERROR && response.getOpt() == null) {
+			// A server predating EDNS rejects the OPT record (RFC 6891 7); ask it again without
+			Log.debug("Server {} does not support EDNS, retrying without it", from);
+			udpPayloadSize = 0;
+			return advance();
+		}
+		response.removeOpt();
+		if (!clientQuery.isRecursionDesired()) {
+			// Client did not ask for recursion, hand back whatever the root said
+			return finish(response.getAnswers(), response);
+		}
+		if (response.getRcode() == DNS.RCODE_SERVER_FAILURE || response.getRcode() == DNS.RCODE_REFUSED) {
+			// Not an answer, only this server failing us. As after a timeout the next one is
+			// asked, and if none is left the client may still get a stale answer (RFC 8767)
+			Log.debug("Server {} failed to answer (rcode {})", from, response.getRcode());
+			return lame(from);
+		}
+
+		List<DNSResourceRecord> answers = response.getAnswers();
+		if (answers.isEmpty()) {
+			return followReferral(response, from);
+		}
+
+		Log.debug("Got Answers from server!");
+		if (!suspended.isEmpty()) {
+			// Name server lookups only need an address, wherever it sits in a CNAME chain
+			for (DNSResourceRecord ans : answers) {
+				if (addressData(ans) != null) {
+					return finish(answers, response);
+				}
+			}
+		}
+		DNSName target = null;
+		for (DNSResourceRecord ans : answers) {
+			if (ans.getType() == question.getType()) {
+				return finish(answers, response);
+			}
+			if (ans.getType() == DNS.TYPE_CNAME && nameData(ans) != null) {
+				target = nameData(ans);
+			}
+		}
+		if (target == null) {
+			return finish(answers, response);
+		}
+
+		// Only an alias came back; keep it for the reply and chase its target from the top
+		for (DNSResourceRecord ans : answers) {
+			if (ans.getType() == DNS.TYPE_CNAME) {
+				cnameChain.add(ans);
+			}
+		}
+		question = new DNSQuestion(target, question.getType());
+		startAt(question.getDomainName());
+		return advance();
+	}
+
+	/**
+	 * No server asked answered in time: they are marked down and the question goes to the
+	 * next best server, or the resolution fails once every candidate has timed out.
+	 */
+	void onTimeout() {
+		for (InetAddress asked : sentAt.keySet()) {
+			Log.debug("Didn't receive answer from server {}", asked);
+			SimpleDNS.metrics.onUpstreamTimeout(asked);
+			if (stats != null) {
+				stats.onTimeout(asked, System.currentTimeMillis());
+			}
+			candidates.remove(asked);
+		}
+		if (candidates.isEmpty()) {
+			exhausted();
+			return;
+		}
+		serverAddress = stats != null ? stats.best(candidates, System.currentTimeMillis()) : candidates.get(0);
+		Log.debug("Retrying with server {}", serverAddress);
+		advance();
+	}
+
+	/** Makes the servers of zone the candidates for the current question and picks the best of them */
+	private void useServers(DNSName zone, List<InetAddress> servers) {
+		this.zone = zone;
+		fallback = null;
+		candidates = new ArrayList<InetAddress>(servers);
+		serverAddress = stats != null ? stats.best(candidates, System.currentTimeMillis()) : candidates.get(0);
+	}
+
+	/** Starts over at the servers of the deepest cached zone enclosing name, or at the roots */
+	private void startAt(DNSName name) {
+		if (delegations != null) {
+			DelegationCache.Delegation delegation = delegations.closest(name, System.currentTimeMillis());
+			if (delegation != null) {
+				Log.debug("Starting at cached zone {} for {}", delegation.getZone(), name);
+				useServers(delegation.getZone(), delegation.getServers());
+				return;
+			}
+		}
+		useServers(DNSName.ROOT, roots);
+	}
+
+	/**
+	 * from gave a response that leads nowhere; like after a timeout, the next candidate is
+	 * asked, and the resolution fails once none is left
+	 */
+	private DNS lame(InetAddress from) {
+		candidates.remove(from);
+		if (candidates.isEmpty()) {
+			return exhausted();
+		}
+		serverAddress = stats != null ? stats.best(candidates, System.currentTimeMillis()) : candidates.get(0);
+		Log.debug("Retrying with server {}", serverAddress);
+		return advance();
+	}
+
+	private DNS followReferral(DNS response, InetAddress from) {
+		List<DNSResourceRecord> nsAnswers = new ArrayList<DNSResourceRecord>();
+		boolean referral = false;
+		for (DNSResourceRecord auth : response.getAuthorities()) {
+			if (auth.getType() != DNS.TYPE_NS) {
+				continue;
+			}
+			referral = true;
+			if (question.getType() == DNS.TYPE_NS && auth.getDomainName().equals(question.getDomainName())) {
+				nsAnswers.add(auth);
+			}
+		}
+		if (!nsAnswers.isEmpty()) {
+			// Delegation for the name itself answers an NS question
+			List<DNSResourceRecord> authorities = new ArrayList<DNSResourceRecord>(response.getAuthorities());
+			authorities.removeAll(nsAnswers);
+			response.setAuthorities(authorities);
+			return finish(nsAnswers, response);
+		}
+		if (!referral) {
+			// Nothing to follow: the server had the final word, e.g. NXDOMAIN or no data
+			return finish(new ArrayList<DNSResourceRecord>(), response);
+		}
+
+		// The referral is about the first NS owner: the zone cut between us and the question.
+		// Bailiwick: a server may only hand the question down, to a zone strictly below its
+		// own, or it could claim any zone for itself and every later lookup below that zone.
+		DNSName cut = null;
+		for (DNSResourceRecord auth : response.getAuthorities()) {
+			if (auth.getType() == DNS.TYPE_NS) {
+				cut = auth.getDomainName();
+				break;
+			}
+		}
+		if (cut.equals(zone) || !cut.isSubdomainOf(zone) || !question.getDomainName().isSubdomainOf(cut)) {
+			Log.debug("Ignoring referral to {} from server {} for {}", cut, from, zone);
+			return lame(from);
+		}
+
+		// look for ip of authority in additional section
+		long nsTtl = Long.MAX_VALUE;
+		long glueTtl = Long.MAX_VALUE;
+		List<InetAddress> glued = new ArrayList<InetAddress>();
+		Deque<DNSName> glueless = new ArrayDeque<DNSName>();
+		for (DNSResourceRecord auth : response.getAuthorities()) {
+			if (auth.getType() != DNS.TYPE_NS || !auth.getDomainName().equals(cut)) {
+				continue;
+			}
+			DNSName nsName = nameData(auth);
+			if (nsName == null) {
+				continue;
+			}
+			boolean hasGlue = false;
+			// Glue only counts for servers inside the zone of the server that sent it, which may
+			// speak for those names; outside it, an address could be planted for any name, and
+			// those servers are looked up on their own instead
+			for (DNSResourceRecord additional : response.getAdditional()) {
+				InetAddress glue = addressData(additional);
+				if (glue != null && nsName.equals(additional.getDomainName()) && nsName.isSubdomainOf(zone)) {
+					glued.add(glue);
+					glueTtl = Math.min(glueTtl, Math.min(auth.getTtl() & 0xffffffffL, additional.getTtl() & 0xffffffffL));
+					hasGlue = true;
+				}
+			}
+			// A server named inside the zone it serves can only be reached through glue
+			if (!hasGlue && !nsName.isSubdomainOf(cut)) {
+				glueless.add(nsName);
+				nsTtl = Math.min(nsTtl, auth.getTtl() & 0xffffffffL);
+			}
+		}
+		referrals++;
+		if (!glued.isEmpty()) {
+			// Kept so later resolutions below the zone can skip ahead
+			if (delegations != null) {
+				delegations.put(cut, glued, glueTtl, System.currentTimeMillis());
+			}
+			useServers(cut, glued);
+			Log.debug("Updated Server to query {}", serverAddress);
+			return advance();
+		}
+		if (glueless.isEmpty() || suspended.size() >= MAX_DEPTH) {
+			Log.debug("No glue for any authority of {}", question.getDomainName());
+			return fail();
+		}
+		suspended.push(new Suspended(question, cnameChain, cut, nsTtl, glueless));
+		cnameChain = new ArrayList<DNSResourceRecord>();
+		return lookUpNameServer();
+	}
+
+	/** Starts resolving the address of the next untried name server of the innermost suspended zone */
+	private DNS lookUpNameServer() {
+		Suspended outer = suspended.peek();
+		DNSName nsName = outer.nameServers.poll();
+		if (nsName == null) {
+			suspended.pop();
+			question = outer.question;
+			cnameChain = outer.cnameChain;
+			Log.debug("No address for any authority of {}", outer.zone);
+			return fail();
+		}
+		Log.debug("No glue for {}, resolving its name server {}", outer.zone, nsName);
+		question = new DNSQuestion(nsName, DNS.TYPE_A);
+		startAt(nsName);
+		return advance();
+	}
+
+	/**
+	 * Resumes the suspended resolution with the name server addresses found in answers, if any.
+	 * The zone's other name servers are kept to fall back on.
+	 */
+	private DNS resume(List<DNSResourceRecord> answers) {
+		List<InetAddress> servers = new ArrayList<InetAddress>();
+		long ttl = Long.MAX_VALUE;
+		for (DNSResourceRecord ans : answers) {
+			InetAddress address = addressData(ans);
+			if (address != null) {
+				servers.add(address);
+				ttl = Math.min(ttl, ans.getTtl() & 0xffffffffL);
+			}
+		}
+		if (servers.isEmpty()) {
+			return lookUpNameServer();
+		}
+		Suspended outer = suspended.pop();
+		question = outer.question;
+		cnameChain = outer.cnameChain;
+		useServers(outer.zone, servers);
+		fallback = outer;
+		if (delegations != null) {
+			// Only one of the zone's name servers is known, so a fuller delegation is kept
+			delegations.putUnlessFuller(outer.zone, servers, Math.min(outer.nsTtl, ttl), System.currentTimeMillis());
+		}
+		Log.debug("Updated Server to query {}", serverAddress);
+		return advance();
+	}
+
+	/**
+	 * Every candidate failed. Before giving up, other name servers without glue are tried:
+	 * those of the referral whose one looked-up server just failed, or else the next one of
+	 * the zone whose name server is being looked up.
+	 */
+	private DNS exhausted() {
+		if (fallback != null) {
+			suspended.push(fallback);
+			fallback = null;
+			return lookUpNameServer();
+		}
+		if (!suspended.isEmpty()) {
+			return lookUpNameServer();
+		}
+		return fail();
+	}
+
+	/** Target of an NS or CNAME record, or null if its data is not a name (e.g. empty) */
+	private static DNSName nameData(DNSResourceRecord record) {
+		DNSRdata data = record.getData();
+		return data instanceof DNSRdataName ? ((DNSRdataName) data).getDomainName() : null;
+	}
+
+	/** IPv4 address of an A record, or null if it is another type or its data is malformed */
+	private static InetAddress addressData(DNSResourceRecord record) {
+		DNSRdata data = record.getData();
+		if (record.getType() != DNS.TYPE_A || !(data instanceof DNSRdataAddress)) {
+			return null;
+		}
+		return ((DNSRdataAddress) data).getAddress();
+	}
+
+	/** Gives up on the whole resolution */
+	private DNS fail() {
+		done = true;
+		SimpleDNS.metrics.onResolution(false, referrals);
+		return null;
+	}
+
+	private DNS advance() {
+		if (++hops >= MAX_HOPS) {
+			Log.warn("Too many hops resolving {}", clientQuery.getQuestions().get(0).getName());
+			done = true;
+			SimpleDNS.metrics.onResolution(false, referrals);
+		}
+		return null;
+	}
+
+	private DNS finish(List<DNSResourceRecord> answers, DNS response) {
+		if (!suspended.isEmpty()) {
+			return resume(answers);
+		}
+		DNS reply = newReply(clientQuery);
+		reply.setRcode(response.getRcode());
+		List<DNSResourceRecord> all = new ArrayList<DNSResourceRecord>(cnameChain);
+		all.addAll(answers);
+		reply.setAnswers(all);
+		reply.setAuthorities(response.getAuthorities());
+		reply.setAdditional(response.getAdditional());
+		done = true;
+		SimpleDNS.metrics.onResolution(true, referrals);
+		return reply;
+	}
+
+	/** Empty reply to the client's query: same ID, question and RD bit */
+	static DNS newReply(DNS clientQuery) {
+		DNS reply = new DNS();
+		reply.setId(clientQuery.getId());
+		reply.setQuery(false);
+		reply.setOpcode(clientQuery.getOpcode());
+		reply.setRecursionDesired(clientQuery.isRecursionDesired());
+		reply.setRecursionAvailable(true);
+		reply.setQuestions(clientQuery.getQuestions());
+		return reply;
+	}
+}
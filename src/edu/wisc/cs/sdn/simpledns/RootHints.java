@@ -0,0 +1,59 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Addresses resolutions start from. Either the built-in root hints or a single server given on
+ * the command line, looked up once at startup, so no query ever waits on the system resolver.
+ */
+final class RootHints
+{
+	/** IPv4 addresses of a.root-servers.net through m.root-servers.net (IANA named.root) */
+	private final static String[] ROOT_SERVERS = {
+		"198.41.0.4", "170.247.170.2", "192.33.4.12", "199.7.91.13", "192.203.230.10",
+		"192.5.5.241", "192.112.36.4", "198.97.190.53", "192.36.148.17", "192.58.128.30",
+		"193.0.14.129", "199.7.83.42", "202.12.27.33"
+	};
+
+	private final List<InetAddress> servers;
+
+	private RootHints(InetAddress[] servers) {
+		this.servers = Collections.unmodifiableList(Arrays.asList(servers));
+	}
+
+	static RootHints builtIn() {
+		InetAddress[] servers = new InetAddress[ROOT_SERVERS.length];
+		for (int i = 0; i < servers.length; i++) {
+			String[] octets = ROOT_SERVERS[i].split("\\.");
+			byte[] address = new byte[4];
+			for (int j = 0; j < 4; j++) {
+				address[j] = (byte) Integer.parseInt(octets[j]);
+			}
+			try {
+				servers[i] = InetAddress.getByAddress(address);
+			} catch (UnknownHostException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return new RootHints(servers);
+	}
+
+	/** Hints holding just server, which may be a host name; it is resolved here, once */
+	static RootHints of(String server) throws UnknownHostException {
+		return new RootHints(new InetAddress[] { InetAddress.getByName(server) });
+	}
+
+	/** Every root server; resolutions choose among them by measured RTT */
+	List<InetAddress> getServers() {
+		return servers;
+	}
+
+	@Override
+	public String toString() {
+		return servers.size() == 1 ? servers.get(0).toString() : servers.size() + " built-in root servers";
+	}
+}
@@ -0,0 +1,72 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNS;
+import edu.wisc.cs.sdn.simpledns.packet.DNSNameTable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pooled encode buffer with its own compression table. Messages are written straight into
+ * it with DNS.writeTo, so the send path produces no per-message garbage once the pool has
+ * filled. The pool is a fixed array of slots, so returning a buffer allocates nothing and
+ * at most POOL_SIZE buffers stay pinned after a burst; the rest are left to the collector.
+ * It is not per thread, as the virtual thread engine runs every query on a new thread.
+ */
+final class SendBuffer
+{
+	/** Largest UDP payload, so no message can overflow */
+	private final static int CAPACITY = 65535;
+
+	/** Idle buffers kept; a power of two */
+	private final static int POOL_SIZE = 32;
+
+	private final static AtomicReferenceArray<SendBuffer> pool = new AtomicReferenceArray<SendBuffer>(POOL_SIZE);
+
+	private final ByteBuffer buffer = ByteBuffer.allocate(CAPACITY);
+	private final DNSNameTable names = new DNSNameTable();
+
+	private SendBuffer() {
+	}
+
+	static SendBuffer acquire() {
+		int start = firstSlot();
+		for (int i = 0; i < POOL_SIZE; i++) {
+			int slot = (start + i) & (POOL_SIZE - 1);
+			if (pool.get(slot) != null) {
+				SendBuffer sendBuffer = pool.getAndSet(slot, null);
+				if (sendBuffer != null) {
+					return sendBuffer;
+				}
+			}
+		}
+		return new SendBuffer();
+	}
+
+	void release() {
+		int start = firstSlot();
+		for (int i = 0; i < POOL_SIZE; i++) {
+			int slot = (start + i) & (POOL_SIZE - 1);
+			if (pool.get(slot) == null && pool.compareAndSet(slot, null, this)) {
+				return;
+			}
+		}
+	}
+
+	/** Threads start scanning at different slots, so they rarely contend for one */
+	private static int firstSlot() {
+		return (int) Thread.currentThread().getId() & (POOL_SIZE - 1);
+	}
+
+	/** Encodes dnsPacket from the start of the buffer, leaving it flipped for sending */
+	ByteBuffer encode(DNS dnsPacket) {
+		buffer.clear();
+		dnsPacket.writeTo(buffer, names);
+		buffer.flip();
+		return buffer;
+	}
+
+	byte[] array() {
+		return buffer.array();
+	}
+}
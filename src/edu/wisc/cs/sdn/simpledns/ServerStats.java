@@ -0,0 +1,136 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Round-trip statistics per authoritative server address, shared by all resolutions.
+ * Smoothed RTT and variance follow RFC 6298 and give each server its own retransmit and hedge
+ * timeouts; servers that time out are backed off and passed over until their hold-down ends.
+ */
+final class ServerStats
+{
+	private final static int MAX_SERVERS = 10000;
+	/** Timeout for a server never heard from */
+	private final static int INITIAL_RTO = 800;
+	private final static int MIN_RTO = 50;
+	private final static int MIN_HEDGE_DELAY = 10;
+	/** Longest a failing server is passed over before it gets another chance */
+	private final static long MAX_HOLD_DOWN_MILLIS = 60000;
+	/** Unknown servers rank as if this fast (at random below it), so each gets tried */
+	private final static int UNKNOWN_RTT = 20;
+	/** Added to the rank of a server in hold-down, so any healthy server goes first */
+	private final static long HOLD_DOWN_PENALTY = 1L << 32;
+
+	private static final class Server
+	{
+		private double srtt = -1;
+		private double rttvar;
+		private int timeouts;
+		private long holdDownUntil;
+	}
+
+	private final ConcurrentHashMap<InetAddress, Server> servers = new ConcurrentHashMap<InetAddress, Server>();
+	private final int maxTimeout;
+
+	/** @param maxTimeout ceiling, in milliseconds, for any retransmit timeout */
+	ServerStats(int maxTimeout) {
+		this.maxTimeout = maxTimeout;
+	}
+
+	/** The candidate expected to answer soonest */
+	InetAddress best(List<InetAddress> candidates, long nowMillis) {
+		InetAddress best = null;
+		long bestRank = Long.MAX_VALUE;
+		for (InetAddress candidate : candidates) {
+			long rank = rank(candidate, nowMillis);
+			if (rank < bestRank) {
+				best = candidate;
+				bestRank = rank;
+			}
+		}
+		return best;
+	}
+
+	private long rank(InetAddress address, long nowMillis) {
+		Server s = servers.get(address);
+		if (s == null) {
+			return ThreadLocalRandom.current().nextInt(UNKNOWN_RTT);
+		}
+		synchronized (s) {
+			long rank = s.srtt < 0 ? UNKNOWN_RTT : (long) s.srtt;
+			return nowMillis < s.holdDownUntil ? rank + HOLD_DOWN_PENALTY : rank;
+		}
+	}
+
+	/**
+	 * Milliseconds to wait for address before also asking another server: about the 95th
+	 * percentile of its RTT (SRTT + 2 RTTVAR, RTTVAR being roughly 0.8 standard deviations)
+	 */
+	int hedgeDelay(InetAddress address) {
+		Server s = servers.get(address);
+		long delay;
+		if (s == null) {
+			delay = INITIAL_RTO / 4;
+		} else {
+			synchronized (s) {
+				delay = s.srtt < 0 ? INITIAL_RTO / 4 : (long) (s.srtt + 2 * s.rttvar);
+			}
+		}
+		return (int) Math.max(MIN_HEDGE_DELAY, Math.min(delay, timeout(address)));
+	}
+
+	/** Milliseconds to wait for address before trying elsewhere: SRTT + 4 RTTVAR, doubled per timeout */
+	int timeout(InetAddress address) {
+		Server s = servers.get(address);
+		if (s == null) {
+			return Math.min(INITIAL_RTO, maxTimeout);
+		}
+		synchronized (s) {
+			long rto = s.srtt < 0 ? INITIAL_RTO : (long) (s.srtt + Math.max(MIN_RTO, 4 * s.rttvar));
+			rto <<= Math.min(s.timeouts, 16);
+			return (int) Math.max(MIN_RTO, Math.min(rto, maxTimeout));
+		}
+	}
+
+	void onResponse(InetAddress address, long rttMillis) {
+		Server s = server(address);
+		synchronized (s) {
+			if (s.srtt < 0) {
+				s.srtt = rttMillis;
+				s.rttvar = rttMillis / 2.0;
+			} else {
+				s.rttvar = 0.75 * s.rttvar + 0.25 * Math.abs(s.srtt - rttMillis);
+				s.srtt = 0.875 * s.srtt + 0.125 * rttMillis;
+			}
+			s.timeouts = 0;
+			s.holdDownUntil = 0;
+		}
+	}
+
+	void onTimeout(InetAddress address, long nowMillis) {
+		Server s = server(address);
+		synchronized (s) {
+			s.timeouts++;
+			s.holdDownUntil = nowMillis + Math.min(1000L << Math.min(s.timeouts, 16), MAX_HOLD_DOWN_MILLIS);
+		}
+	}
+
+	private Server server(InetAddress address) {
+		Server s = servers.get(address);
+		if (s == null) {
+			if (servers.size() >= MAX_SERVERS) {
+				// Rarely reached; forgetting everything only costs a few exploratory queries
+				servers.clear();
+			}
+			Server fresh = new Server();
+			s = servers.putIfAbsent(address, fresh);
+			if (s == null) {
+				s = fresh;
+			}
+		}
+		return s;
+	}
+}
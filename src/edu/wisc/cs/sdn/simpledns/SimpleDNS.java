@@ -3,41 +3,146 @@ package edu.wisc.cs.sdn.simpledns;
 import edu.wisc.cs.sdn.simpledns.packet.*;
 
 import java.io.BufferedReader;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.*;
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 public class SimpleDNS
 {
+	/** Root server from -r; without it resolutions start from the built-in root hints */
 	private static String serverName;
-	private static Map<String, String> ec2Table;
+	private static RootHints rootHints;
+	/** Swapped whole by Ec2TableWatcher; readers take one snapshot per reply */
+	private final static AtomicReference<Ec2Table> ec2Table = new AtomicReference<Ec2Table>();
+	private static String ec2File;
 	private static DatagramSocket serverSocket;
 	private final static int CLIENT_DNS_PORT = 8053;
-	private final static int QUERY_DNS_PORT = 53;
-	private final static int MAX_PACKET_SIZE = 4096;
-	private final static int MAX_TIME_OUT = 2000;
+	final static int QUERY_DNS_PORT = 53;
+	final static int MAX_PACKET_SIZE = 4096;
+	final static int MAX_TIME_OUT = 2000;
+	private final static int HEADER_LENGTH = 12;
+	/** Encoded size of our OPT record: root name, type, class, TTL and empty RDATA */
+	private final static int OPT_LENGTH = 11;
+	/** Extended RCODE BADVERS (16) sits in the top byte of an OPT record's TTL */
+	private final static int EDNS_BAD_VERSION_TTL = 1 << 24;
+
+	/**
+	 * Resolution engine: "serial" on the receive thread, "pool" on a bounded worker pool,
+	 * "virtual" on one virtual thread per query (Java 21+), "nio" on event loops
+	 */
+	private static String engine = "pool";
+	/** Worker threads (pool) or event loops (nio); 0 picks the engine's default */
+	private static int workerThreads = 0;
+	/** Queued (pool) or in-flight (virtual, nio) resolutions before queries are dropped; 0 picks the engine's default */
+	private static int workerBacklog = 0;
+	private static ExecutorService workers;
+	/** Bounds the virtual-thread engine, whose executor has no queue of its own */
+	private static Semaphore virtualPermits;
+	/** Entries per cache (answers, zone cuts); -c 0 turns caching off */
+	private static int cacheSize = 100000;
+	/** Share of its TTL after which a popular entry is refreshed in the background; -p 0 turns this off */
+	private static int prefetchPercent = 90;
+	private final static int PREFETCH_THREADS = 2;
+	/** Refreshes queued for the prefetch threads before further ones are skipped */
+	private final static int PREFETCH_BACKLOG = 64;
+	private static RefreshAhead refreshAhead;
+	private static ExecutorService prefetchWorkers;
+	/**
+	 * Milliseconds a client waits on a resolution before an expired answer is served instead
+	 * (RFC 8767); -s 0 serves stale answers only when resolution fails
+	 */
+	private static int staleDeadline = 1800;
+	private static ScheduledExecutorService staleTimer;
+	private static AnswerCache answerCache;
+	/** Encoded replies for hot names, consulted before a query is even decoded */
+	private static WireCache wireCache;
+	private static DelegationCache delegationCache;
+	/** RTTs of the authoritative servers, to pick the fastest and time out per server */
+	private final static ServerStats serverStats = new ServerStats(MAX_TIME_OUT);
+	/** Identical queries wait on one resolution instead of each starting their own */
+	private final static SingleFlight singleFlight = new SingleFlight();
+	/** Servers asked in parallel per hop when the first is slower than usual; -q 1 turns hedging off */
+	private static int hedgeCopies = 2;
+	/**
+	 * UDP payload size advertised with EDNS, upstream and to clients (RFC 6891); replies to
+	 * EDNS clients may be this long before they are truncated. -u 0 turns EDNS off
+	 */
+	private static int ednsPayload = 1232;
+	/** Long-lived upstream channels of the blocking engines; the nio engine's loops own theirs */
+	private static UpstreamSockets upstream;
+	private final static int UPSTREAM_SOCKETS = 8;
+	/** Retries truncated upstream replies over TCP */
+	private static UpstreamTcp upstreamTcp;
+	private static NioResolver[] nioLoops;
+	private final static AtomicInteger nextLoop = new AtomicInteger();
+	/** Recorded by every engine; read over JMX and the metrics endpoint */
+	final static Metrics metrics = new Metrics();
+	/** Loopback port of the plain-text metrics endpoint; -o 0 turns it off */
+	private static int metricsPort = 8054;
 
 	public static void main(String[] args) {
-		System.out.println("Hello, DNS!");
+		Log.info("Hello, DNS!");
 
 
-		if (args.length != 4) {
-			System.out.println("Invalid Arguments!");
+		if (args.length % 2 != 0) {
+			Log.error("Invalid Arguments!");
 			return;
 		}
-		for (int i = 0; i < args.length; i++) {
-			if (args[i].equals("-r")) {
-				serverName = args[++i];
-			} else if (args[i].equals("-e")) {
-				ec2Table = loadEC2Table(args[++i]);
-			} else {
-				System.out.println("Invalid Arguments!");
-				return;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-r")) {
+					serverName = args[++i];
+				} else if (args[i].equals("-e")) {
+					ec2File = args[++i];
+					ec2Table.set(loadEC2Table(ec2File));
+				} else if (args[i].equals("-m")) {
+					engine = args[++i];
+				} else if (args[i].equals("-t")) {
+					workerThreads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-b")) {
+					workerBacklog = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-c")) {
+					cacheSize = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-p")) {
+					prefetchPercent = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-s")) {
+					staleDeadline = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-q")) {
+					hedgeCopies = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-u")) {
+					ednsPayload = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-o")) {
+					metricsPort = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-l")) {
+					Log.setLevel(Log.Level.valueOf(args[++i].toUpperCase()));
+				} else {
+					Log.error("Invalid Arguments!");
+					return;
+				}
 			}
+		} catch (IllegalArgumentException e) {
+			// Not a number, or not a log level
+			Log.error("Invalid Arguments!");
+			return;
+		}
+		if (ec2File == null || workerThreads < 0 || workerBacklog < 0 || cacheSize < 0
+				|| prefetchPercent < 0 || prefetchPercent >= 100 || staleDeadline < 0 || hedgeCopies < 1
+				|| metricsPort < 0 || metricsPort > 65535
+				|| (ednsPayload != 0 && (ednsPayload < DNS.MIN_UDP_PAYLOAD_SIZE || ednsPayload > MAX_PACKET_SIZE))
+				|| !(engine.equals("serial") || engine.equals("pool") || engine.equals("virtual")
+						|| engine.equals("nio"))) {
+			Log.error("Invalid Arguments!");
+			return;
 		}
+		new Ec2TableWatcher(ec2File, ec2Table).start();
 		// open a socket
 		startDnsServer();
 	}
@@ -45,245 +150,662 @@ public class SimpleDNS
 	private static void startDnsServer(){
 
 		byte[] buffer = new byte[MAX_PACKET_SIZE];
-		DNS dnsPacket;
-		DNSQuestion question;
 
 		try {
+			// Looked up once here rather than per query, so no resolution ever waits on the system resolver
+			rootHints = serverName != null ? RootHints.of(serverName) : RootHints.builtIn();
 			serverSocket = new DatagramSocket(CLIENT_DNS_PORT);
-			System.out.println("Socket initialization succeeded, listening...(root server is " + serverName + ")");
+			new TcpListener(new ServerSocket(CLIENT_DNS_PORT)).start();
+			Log.info("Socket initialization succeeded, listening...(root server is {})", rootHints);
+			if (cacheSize > 0) {
+				if (prefetchPercent > 0) {
+					refreshAhead = new RefreshAhead(prefetchPercent);
+					metrics.setRefreshAhead(refreshAhead);
+					prefetchWorkers = createWorkerPool(PREFETCH_THREADS, PREFETCH_BACKLOG);
+				}
+				if (staleDeadline > 0) {
+					staleTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "dns-stale-timer");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+				}
+				answerCache = new AnswerCache(cacheSize, refreshAhead);
+				wireCache = new WireCache(cacheSize, refreshAhead);
+				delegationCache = new DelegationCache(cacheSize);
+			}
+			// Also used by prefetches, whatever the engine
+			upstream = new UpstreamSockets(UPSTREAM_SOCKETS);
+			upstream.start();
+			upstreamTcp = new UpstreamTcp();
+			int cores = Runtime.getRuntime().availableProcessors();
+			if (engine.equals("pool")) {
+				workerThreads = workerThreads > 0 ? workerThreads : 4 * cores;
+				workerBacklog = workerBacklog > 0 ? workerBacklog : 1024;
+				workers = createWorkerPool(workerThreads, workerBacklog);
+				Log.info("Resolving on {} worker threads (backlog {})", workerThreads, workerBacklog);
+			} else if (engine.equals("virtual")) {
+				workerBacklog = workerBacklog > 0 ? workerBacklog : 65536;
+				workers = createVirtualExecutor();
+				if (workers == null) {
+					Log.error("Virtual threads need Java 21 or later, running {}", System.getProperty("java.version"));
+					System.exit(1);
+				}
+				virtualPermits = new Semaphore(workerBacklog);
+				Log.info("Resolving on a virtual thread per query (max in flight {})", workerBacklog);
+			} else if (engine.equals("nio")) {
+				workerThreads = workerThreads > 0 ? workerThreads : cores;
+				workerBacklog = workerBacklog > 0 ? workerBacklog : 65536;
+				nioLoops = new NioResolver[workerThreads];
+				for (int i = 0; i < nioLoops.length; i++) {
+					nioLoops[i] = new NioResolver("dns-nio-" + (i + 1), upstreamTcp, hedgeCopies,
+						workerBacklog / nioLoops.length + 1);
+					nioLoops[i].start();
+				}
+				Log.info("Resolving on {} event loops (max in flight {})", workerThreads, workerBacklog);
+			}
+			startMetrics();
+			DatagramPacket dnsReceived = new DatagramPacket(buffer, buffer.length);
 			while(true){
-				DatagramPacket dnsReceived = new DatagramPacket(buffer, buffer.length);
+				dnsReceived.setLength(buffer.length);
 				serverSocket.receive(dnsReceived);
-				System.out.println("--------------Handling DNS query-----------------");
-				dnsPacket = DNS.deserialize(buffer, buffer.length);
-				if (dnsPacket.getOpcode() != DNS.OPCODE_STANDARD_QUERY){
-					// Only listening to standard queries
-					continue;
-				}
-				question = dnsPacket.getQuestions().get(0);
-				Short[] validTypes = {DNS.TYPE_A, DNS.TYPE_AAAA, DNS.TYPE_CNAME, DNS.TYPE_NS};
-				Set<Short> validDnsTypes = new HashSet<Short>(Arrays.asList(validTypes));
-				if (!validDnsTypes.contains(question.getType())){
-					continue;
+				UdpClient client = new UdpClient(serverSocket, dnsReceived.getSocketAddress());
+				try {
+					handleClientQuery(buffer, dnsReceived.getLength(), client);
+				} catch (RuntimeException e) {
+					// Whatever one datagram does, the next ones still get served. Anyone can
+					// send these, so they are only traced when debugging, not to flood the log
+					Log.debug("Query from {} failed", client, e);
 				}
-				handleDnsQuery(dnsPacket, dnsReceived);
 			}
 		} catch (SocketException e) {
-			System.out.println("Server socket initialization failed!");
-			e.printStackTrace();
+			Log.error("Server socket initialization failed!", e);
 			serverSocket.close();
 			System.exit(1);
 		} catch (IOException i) {
-			i.printStackTrace();
+			Log.error("DNS server failed", i);
 			serverSocket.close();
 			System.exit(1);
 		}
 		serverSocket.close();
 	}
 
-	private static void handleDnsQuery(DNS dnsPacket, DatagramPacket dnsReceived) throws IOException {
-		// Check NS then reply to client, if in EC2, add a TXT record to reply
-		byte[] buffer = new byte[MAX_PACKET_SIZE];
-		DatagramPacket query;
-		List<DNSQuestion> questions = dnsPacket.getQuestions();
-		InetAddress serverAddress = InetAddress.getByName(serverName);
-		DatagramSocket socket = new DatagramSocket();
-		DNS toSendToClient = dnsPacket;
-		boolean done = false;
-
-		while(!done) {
-			System.out.println("Sending query for: " + dnsPacket.getId());
-			for (DNSQuestion q : dnsPacket.getQuestions()) {
-				System.out.println(q.toString());
+	/** Publishes the metrics over JMX and, unless -o 0, on the plain-text endpoint */
+	private static void startMetrics() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+					new ObjectName("edu.wisc.cs.sdn.simpledns:type=Metrics"));
+		} catch (JMException e) {
+			Log.warn("Cannot register metrics with JMX", e);
+		}
+		if (metricsPort > 0) {
+			try {
+				new MetricsEndpoint(metricsPort, metrics).start();
+			} catch (IOException e) {
+				Log.warn("Cannot serve metrics on port {}: {}", metricsPort, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Fixed-size pool with a bounded queue; when the backlog is full the query is
+	 * dropped and the client's own retry takes over, rather than letting the queue grow.
+	 */
+	static ExecutorService createWorkerPool(int threads, int backlog) {
+		final AtomicInteger count = new AtomicInteger();
+		ThreadFactory factory = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "dns-worker-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(backlog), factory, new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * One new virtual thread per task, or null on a JVM without them. Looked up reflectively
+	 * so the tree still builds for older targets. handleDnsQuery stays blocking: on a virtual
+	 * thread the socket receive parks and frees the carrier instead of holding an OS thread.
+	 */
+	static ExecutorService createVirtualExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	private static void dispatchDnsQuery(final DNS dnsPacket, final ReplyTarget client) {
+		if (virtualPermits != null && !virtualPermits.tryAcquire()) {
+			Log.warn("Too many queries in flight, dropping query {}", dnsPacket.getId());
+			metrics.onDropped();
+			abandonDnsQuery(dnsPacket);
+			return;
+		}
+		try {
+			workers.execute(new Runnable() {
+				public void run() {
+					try {
+						handleDnsQuery(dnsPacket, client);
+					} catch (IOException e) {
+						Log.error("Resolution of query {} failed", dnsPacket.getId(), e);
+					} finally {
+						if (virtualPermits != null) {
+							virtualPermits.release();
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException r) {
+			Log.warn("Worker backlog full, dropping query {}", dnsPacket.getId());
+			metrics.onDropped();
+			if (virtualPermits != null) {
+				virtualPermits.release();
+			}
+			abandonDnsQuery(dnsPacket);
+		}
+	}
+
+	/**
+	 * Answers one client query, from cache or by starting or joining a resolution.
+	 * @param client the sender's address, or the TCP connection it came in on
+	 */
+	static void handleClientQuery(byte[] buffer, int length, ReplyTarget client) throws IOException {
+		long receivedAt = System.nanoTime();
+		Log.debug("--------------Handling DNS query-----------------");
+		// Filter on the raw header and question before building the full message
+		DNSView view = DNSView.wrap(buffer, length);
+		if (view == null || !view.isQuery() || view.getOpcode() != DNS.OPCODE_STANDARD_QUERY){
+			// Only listening to standard queries
+			return;
+		}
+		if (view.getQuestionCount() == 0 || !view.isWellFormed()) {
+			return;
+		}
+		DNSName name;
+		try {
+			name = view.getQuestionName(0);
+		} catch (RuntimeException e) {
+			// Compression pointer loop, pointer past the end, or overlong name
+			sendFormatError(buffer, client);
+			return;
+		}
+		metrics.onQuery(view.getQuestionType(0));
+		if (!isValidQueryType(view.getQuestionType(0))) {
+			return;
+		}
+		int opt = view.getOptIndex();
+		if (ednsPayload > 0 && opt >= 0 && (view.getRecordTtl(opt) >>> 16 & 0xff) != 0) {
+			// Only EDNS version 0 exists (RFC 6891 6.1.3)
+			DNS reply = Resolution.newReply(view.toDNS());
+			reply.setUdpPayloadSize(ednsPayload);
+			reply.getOpt().setTtl(EDNS_BAD_VERSION_TTL);
+			sendDNSReply(reply, client, 0, 0);
+			return;
+		}
+		if (answerFromWireCache(view, name, buffer, client)) {
+			metrics.onReplied(receivedAt);
+			return;
+		}
+		DNS dnsPacket = view.toDNS();
+		if (answerFromCache(dnsPacket, client)) {
+			metrics.onReplied(receivedAt);
+			return;
+		}
+		if (dnsPacket.isRecursionDesired()) {
+			SingleFlight.Waiter waiter = singleFlight.join(dnsPacket, client, receivedAt);
+			if (waiter == null) {
+				return;
 			}
-			query = new DatagramPacket(dnsPacket.serialize(), dnsPacket.getLength(), serverAddress, QUERY_DNS_PORT);
-			// This socket is used to send query to server
-			socket.send(query);
-			System.out.println("Sent query to server " + serverAddress.toString() + ". asking for " + dnsPacket.getQuestions().get(0).toString());
-			socket.setSoTimeout(MAX_TIME_OUT);
+			scheduleStaleAnswer(waiter);
+			if (!waiter.isLeader()) {
+				return;
+			}
+		}
+		if (nioLoops != null) {
+			int loop = (nextLoop.getAndIncrement() & Integer.MAX_VALUE) % nioLoops.length;
+			if (!nioLoops[loop].submit(newResolution(dnsPacket), client)) {
+				Log.warn("Too many queries in flight, dropping query {}", dnsPacket.getId());
+				metrics.onDropped();
+				abandonDnsQuery(dnsPacket);
+			}
+		} else if (workers == null) {
+			handleDnsQuery(dnsPacket, client);
+		} else {
+			dispatchDnsQuery(dnsPacket, client);
+		}
+	}
+
+	private static Resolution newResolution(DNS dnsPacket) {
+		return new Resolution(dnsPacket, rootHints, delegationCache, serverStats, ednsPayload);
+	}
+
+	/**
+	 * Sends an encoded reply over whichever transport the query came in on, adding our OPT
+	 * record for EDNS clients. Over UDP, a reply longer than the client takes is cut down to
+	 * header and question with TC set, so the client asks again over TCP.
+	 * @param message has room for the OPT record after length
+	 * @param udpPayloadSize what the query advertised, 0 without EDNS
+	 */
+	private static void sendToClient(byte[] message, int length, ReplyTarget client, int udpPayloadSize)
+			throws IOException {
+		boolean edns = udpPayloadSize > 0 && ednsPayload > 0;
+		if (edns) {
+			length = appendOpt(message, length);
+		}
+		if (client.isStream()) {
+			client.send(message, length);
+			return;
+		}
+		int limit = edns ? Math.min(udpPayloadSize, ednsPayload) : DNS.MIN_UDP_PAYLOAD_SIZE;
+		if (length > limit) {
+			int questionEnd = DNSView.wrap(message, length).getQuestionEndOffset(0);
+			byte[] truncated = Arrays.copyOf(message, questionEnd + (edns ? OPT_LENGTH : 0));
+			truncated[2] |= 0x02;
+			Arrays.fill(truncated, 6, 12, (byte) 0);
+			if (edns) {
+				appendOpt(truncated, questionEnd);
+			}
+			client.send(truncated, truncated.length);
+			return;
+		}
+		client.send(message, length);
+	}
+
+	/**
+	 * Writes our OPT record after the first length bytes of message and counts it in the header.
+	 * @return the new length
+	 */
+	private static int appendOpt(byte[] message, int length) {
+		// Root owner name, type, then our payload size as the class
+		message[length] = 0;
+		message[length + 1] = (byte) (DNS.TYPE_OPT >>> 8);
+		message[length + 2] = (byte) DNS.TYPE_OPT;
+		message[length + 3] = (byte) (ednsPayload >>> 8);
+		message[length + 4] = (byte) ednsPayload;
+		// Extended RCODE, version 0, no flags, no options
+		Arrays.fill(message, length + 5, length + OPT_LENGTH, (byte) 0);
+		int additional = ((message[10] & 0xff) << 8 | (message[11] & 0xff)) + 1;
+		message[10] = (byte) (additional >>> 8);
+		message[11] = (byte) additional;
+		return length + OPT_LENGTH;
+	}
+
+	private static boolean isValidQueryType(short type) {
+		return type == DNS.TYPE_A || type == DNS.TYPE_AAAA || type == DNS.TYPE_CNAME || type == DNS.TYPE_NS;
+	}
+
+	/** Answers a query whose question cannot be decoded: FORMERR, with only the header to go on */
+	private static void sendFormatError(byte[] query, ReplyTarget client) throws IOException {
+		byte[] reply = new byte[HEADER_LENGTH];
+		reply[0] = query[0];
+		reply[1] = query[1];
+		// QR, then the query's opcode and RD; no question, as it could not be read
+		reply[2] = (byte) (0x80 | (query[2] & 0x79));
+		reply[3] = (byte) (0x80 | DNS.RCODE_FORMAT_ERROR);
+		sendToClient(reply, reply.length, client, 0);
+	}
+
+	/** Replays a cached encoded reply with the query's ID patched in; false on a miss */
+	private static boolean answerFromWireCache(DNSView view, DNSName name, byte[] query, ReplyTarget client)
+			throws IOException {
+		if (wireCache == null || !view.isRecursionDesired()) {
+			return false;
+		}
+		SendBuffer out = SendBuffer.acquire();
+		try {
+			int length = wireCache.copyTo(view, name, query, ec2Table.get(), out.array(), System.currentTimeMillis());
+			if (length < 0) {
+				return false;
+			}
+			sendToClient(out.array(), length, client, view.getUdpPayloadSize());
+		} finally {
+			out.release();
+		}
+		metrics.onWireCacheHit();
+		Log.debug("Answered from wire cache");
+		return true;
+	}
+
+	/** Replies straight from the answer cache; false on a miss */
+	private static boolean answerFromCache(DNS dnsPacket, ReplyTarget client) throws IOException {
+		if (answerCache == null || !dnsPacket.isRecursionDesired()) {
+			return false;
+		}
+		DNS reply = answerCache.get(dnsPacket, System.currentTimeMillis());
+		if (reply == null) {
+			return false;
+		}
+		metrics.onCacheHit();
+		Log.debug("Answered from cache");
+		sendDNSReply(reply, client, dnsPacket.getUdpPayloadSize(), AnswerCache.remainingSeconds(reply));
+		return true;
+	}
+
+	/**
+	 * Delivers the result of a resolution to its client and to every identical query that
+	 * waited on it, remembering positive and negative answers. Queries already answered
+	 * stale only see the caches refreshed.
+	 */
+	static void finishDnsQuery(DNS clientQuery, DNS reply, ReplyTarget client) throws IOException {
+		long cacheSeconds = 0;
+		if (answerCache != null && reply.isRecursionDesired()) {
+			cacheSeconds = answerCache.put(reply, System.currentTimeMillis());
+		}
+		List<SingleFlight.Waiter> waiters = singleFlight.complete(clientQuery);
+		if (waiters.isEmpty()) {
+			// Not coalesced: an iterative query, or a prefetch nobody waited on
+			sendDNSReply(reply, client, clientQuery.getUdpPayloadSize(), cacheSeconds);
+			return;
+		}
+		// Copied before sendDNSReply adds the EC2 records to this reply
+		List<DNS> replies = new ArrayList<DNS>(waiters.size());
+		for (SingleFlight.Waiter waiter : waiters) {
+			replies.add(waiter.replyFrom(reply));
+		}
+		for (int i = 0; i < waiters.size(); i++) {
+			if (waiters.get(i).claim()) {
+				SingleFlight.Waiter waiter = waiters.get(i);
+				sendDNSReply(replies.get(i), waiter.getClient(), waiter.getQuery().getUdpPayloadSize(), cacheSeconds);
+				metrics.onReplied(waiter.getReceivedAt());
+				// One encoding is enough to fill the wire cache
+				cacheSeconds = 0;
+			}
+		}
+		if (cacheSeconds > 0) {
+			sendDNSReply(reply, null, 0, cacheSeconds);
+		}
+	}
+
+	/**
+	 * Arms the client-facing deadline of a recursive query: if it is still unanswered then,
+	 * and an expired answer is cached, that answer goes out while resolution carries on.
+	 */
+	private static void scheduleStaleAnswer(final SingleFlight.Waiter waiter) {
+		if (staleTimer == null || !answerCache.hasStale(waiter.getQuery().getQuestions().get(0), System.currentTimeMillis())) {
+			return;
+		}
+		staleTimer.schedule(new Runnable() {
+			public void run() {
+				try {
+					answerStale(waiter);
+				} catch (IOException e) {
+					Log.error("Stale answer to query {} failed", waiter.getQuery().getId(), e);
+				}
+			}
+		}, staleDeadline, TimeUnit.MILLISECONDS);
+	}
+
+	/** Serves an expired cached answer to waiter, unless it was answered already or there is none */
+	private static void answerStale(SingleFlight.Waiter waiter) throws IOException {
+		if (answerCache == null) {
+			return;
+		}
+		DNS reply = answerCache.getStale(waiter.getQuery(), System.currentTimeMillis());
+		if (reply != null && waiter.claim()) {
+			Log.debug("Answered stale from cache");
+			sendDNSReply(reply, waiter.getClient(), waiter.getQuery().getUdpPayloadSize(), 0);
+			metrics.onStaleAnswer();
+			metrics.onReplied(waiter.getReceivedAt());
+		}
+	}
+
+	/**
+	 * Re-resolves question for the caches on a prefetch thread, unless it is already being
+	 * resolved or the prefetch backlog is full. Clients asking meanwhile wait on this resolution.
+	 * @return true if the prefetch started
+	 */
+	static boolean prefetchDnsQuery(DNSQuestion question) {
+		final DNS query = new DNS();
+		query.setId((short) ThreadLocalRandom.current().nextInt());
+		query.setQuery(true);
+		query.setOpcode(DNS.OPCODE_STANDARD_QUERY);
+		query.setRecursionDesired(true);
+		DNSQuestion copy = new DNSQuestion(question.getDomainName(), question.getType());
+		copy.setClass(question.getCls());
+		query.addQuestion(copy);
+		if (!singleFlight.lead(query)) {
+			return false;
+		}
+		try {
+			prefetchWorkers.execute(new Runnable() {
+				public void run() {
+					try {
+						handleDnsQuery(query, null);
+					} catch (IOException e) {
+						Log.error("Prefetch of {} failed", query.getQuestions().get(0).getName(), e);
+					}
+				}
+			});
+			refreshAhead.countStarted();
+			if (Log.isDebugEnabled()) {
+				Log.debug("Prefetching {} ({} started, {} skipped)", copy.getDomainName(), refreshAhead.getStarted(),
+						refreshAhead.getDropped());
+			}
+			return true;
+		} catch (RejectedExecutionException r) {
+			refreshAhead.countDropped();
+			abandonDnsQuery(query);
+			return false;
+		}
+	}
+
+	/**
+	 * Ends a resolution that produced no reply. Its queries get an expired answer if one is
+	 * cached, and otherwise go unanswered so that the clients retry.
+	 */
+	static void abandonDnsQuery(DNS clientQuery) {
+		for (SingleFlight.Waiter waiter : singleFlight.complete(clientQuery)) {
 			try {
-				socket.receive(new DatagramPacket(buffer, buffer.length));
-			} catch (SocketTimeoutException s) {
-				System.out.println("Didn't receive answer from server " + serverAddress.toString());
-				System.out.println("-----------------Query failed--------------------");
-				break;
+				answerStale(waiter);
+			} catch (IOException e) {
+				Log.error("Stale answer to query {} failed", waiter.getQuery().getId(), e);
 			}
-			System.out.println("Received back from server: " + serverAddress.toString());
-			// dnsPacket is updated every loop
-			dnsPacket = DNS.deserialize(buffer, buffer.length);
-			List<DNSResourceRecord> rootAnswers = dnsPacket.getAnswers();
-			List<DNSResourceRecord> rootAuthorities = dnsPacket.getAuthorities();
-			List<DNSResourceRecord> rootAdditional = dnsPacket.getAdditional();
-			if(!dnsPacket.isRecursionDesired()){
-				// Send back to client
-				sendDNSReply(dnsPacket, dnsReceived);
-				done = true;
-			} else {
-				if (rootAnswers.isEmpty()) {
-					// if original query was NS, then done.
-					if (questions.get(0).getType() == DNS.TYPE_NS) {
-						toSendToClient.setAnswers(dnsPacket.getAdditional());
-						sendDNSReply(dnsPacket, dnsReceived);
-						done = true;
+		}
+	}
+
+	/**
+	 * Ends a resolution that broke down, on malformed upstream data or a bug. Its queries get an
+	 * expired answer if one is cached and SERVFAIL otherwise, instead of waiting for a retry.
+	 */
+	static void failDnsQuery(DNS clientQuery, ReplyTarget client) {
+		List<SingleFlight.Waiter> waiters = singleFlight.complete(clientQuery);
+		if (waiters.isEmpty() && client != null && !clientQuery.isRecursionDesired()) {
+			// Iterative queries are not coalesced, so nobody else would reply
+			sendServerFailure(clientQuery, client);
+		}
+		for (SingleFlight.Waiter waiter : waiters) {
+			try {
+				answerStale(waiter);
+			} catch (IOException e) {
+				Log.error("Stale answer to query {} failed", waiter.getQuery().getId(), e);
+			}
+			if (waiter.claim()) {
+				sendServerFailure(waiter.getQuery(), waiter.getClient());
+				metrics.onReplied(waiter.getReceivedAt());
+			}
+		}
+	}
+
+	private static void sendServerFailure(DNS query, ReplyTarget client) {
+		DNS reply = Resolution.newReply(query);
+		reply.setRcode(DNS.RCODE_SERVER_FAILURE);
+		try {
+			sendDNSReply(reply, client, query.getUdpPayloadSize(), 0);
+		} catch (IOException e) {
+			Log.error("Reply to query {} failed", query.getId(), e);
+		}
+	}
+
+	/** Resolves dnsPacket and replies to client; a null client only refreshes the caches */
+	private static void handleDnsQuery(DNS dnsPacket, ReplyTarget client) throws IOException {
+		// Check NS then reply to client, if in EC2, add a TXT record to reply
+		Resolution resolution = newResolution(dnsPacket);
+
+		try {
+			while (!resolution.isDone()) {
+				DNS query = resolution.nextQuery();
+				InetAddress serverAddress = resolution.getServerAddress();
+				UpstreamSockets.Exchange exchange = upstream.open();
+				try {
+					if (!upstream.send(exchange, query, serverAddress)) {
+						Log.debug("-----------------Query failed--------------------");
+						break;
 					}
-					// look for ip of authority in additional section
-					for (DNSResourceRecord auth : rootAuthorities) {
-						boolean serverUpdated = false;
-						System.out.println("This auth is " + auth.toString());
-						System.out.println("All additionls are: ");
-						for (DNSResourceRecord additional : rootAdditional) {
-							System.out.println(additional.toString());
-						}
-						if (auth.getType() != DNS.TYPE_NS) {
-							continue;
+					Log.debug("Sent query to server {}. asking for {}", serverAddress, resolution.getQuestion());
+					long now = System.currentTimeMillis();
+					long deadline = now + resolution.getTimeout();
+					long hedgeAt = hedgeCopies > 1 ? now + resolution.getHedgeDelay() : Long.MAX_VALUE;
+					while (!exchange.await(Math.min(hedgeAt, deadline) - now)) {
+						now = System.currentTimeMillis();
+						if (now >= deadline) {
+							break;
 						}
-						DNSRdataName nsName = (DNSRdataName) auth.getData();
-						for (DNSResourceRecord additional : rootAdditional) {
-							if (additional.getType() == DNS.TYPE_A
-									&& nsName.getName().equals(additional.getName()))
-							{
-								System.out.println("This addtional matches: " + additional.toString());
-								String addressName = additional.getName();
-								serverAddress = InetAddress.getByName(addressName);
-								System.out.println("Updated Server to query " + serverAddress.toString());
-								serverUpdated = true;
-								break;
+						if (now >= hedgeAt) {
+							// Slower than the server usually is: ask the next best one as well
+							InetAddress hedged = resolution.hedge(hedgeCopies);
+							if (hedged != null && upstream.send(exchange, query, hedged)) {
+								hedgeAt = now + resolution.getHedgeDelay();
+							} else {
+								hedgeAt = Long.MAX_VALUE;
 							}
 						}
-						if (serverUpdated) break;
 					}
-					// Add additionals, authorities to reply
-					toSendToClient.setAdditional(rootAdditional);
-					toSendToClient.setAuthorities(rootAuthorities);
-
-				} else { // Hold toSendToClient until get answers
-					System.out.println("Got Answers from server!");
-					boolean containTypeA = false;
-					for (DNSResourceRecord ans : rootAnswers){
-						if (ans.getType() == DNS.TYPE_A) {
-							containTypeA = true;
-							break;
-						}
+				} finally {
+					upstream.close(exchange);
+				}
+				InetAddress from = exchange.getFrom();
+				if (from == null) {
+					resolution.onTimeout();
+					if (resolution.isDone()) {
+						Log.debug("-----------------Query failed--------------------");
 					}
-					if(!containTypeA){
-						for (DNSResourceRecord ans : rootAnswers){
-							if (ans.getType() == DNS.TYPE_CNAME){
-								DNSQuestion newQuestion = new DNSQuestion();
-								newQuestion.setName(ans.getData().toString());
-								newQuestion.setType(DNS.TYPE_A);
-								newQuestion.setClass(DNS.CLASS_IN);
-								dnsPacket.setQuestions(Collections.singletonList(newQuestion));
-							}
+					continue;
+				}
+				Log.debug("Received back from server: {}", from);
+				DNS response = exchange.getResponse();
+				if (response.isTruncated()) {
+					// Did not fit in a datagram; ask the same server again over TCP
+					Log.debug("Truncated answer from server {}, retrying over TCP", from);
+					metrics.onTcpRetry();
+					response = upstreamTcp.exchange(query, from, resolution.getTimeout());
+					if (response == null) {
+						resolution.onTimeout();
+						if (resolution.isDone()) {
+							Log.debug("-----------------Query failed--------------------");
 						}
-					} else {
-						toSendToClient.setAnswers(rootAnswers);
-						sendDNSReply(toSendToClient, dnsReceived);
-						done = true;
+						continue;
 					}
 				}
+				DNS reply = resolution.onResponse(response, from);
+				if (reply != null) {
+					finishDnsQuery(dnsPacket, reply, client);
+				} else if (resolution.isDone()) {
+					Log.debug("-----------------Query failed--------------------");
+				}
 			}
-			prepareNewQuery(dnsPacket, questions);
+		} catch (RuntimeException e) {
+			Log.error("Resolution of query {} failed", dnsPacket.getId(), e);
+			failDnsQuery(dnsPacket, client);
+		} finally {
+			abandonDnsQuery(dnsPacket);
 		}
-		socket.close();
 	}
 
-	private static void prepareNewQuery(DNS dnsPacket, List<DNSQuestion> questions){
-		dnsPacket.setQuery(true);
-		dnsPacket.setOpcode(DNS.OPCODE_STANDARD_QUERY);
-		dnsPacket.setTruncated(false);
-		dnsPacket.setRecursionAvailable(true);
-		dnsPacket.setRecursionDesired(false);
-		dnsPacket.setAuthenicated(true);
-		dnsPacket.setAuthoritative(true);
-		dnsPacket.setQuestions(questions);
-		dnsPacket.setAuthorities(new LinkedList<>());
-		dnsPacket.setAdditional(new LinkedList<>());
+	/**
+	 * @param client where to send the reply, or null to only cache it (prefetch)
+	 * @param udpPayloadSize what the client's query advertised with EDNS, 0 if nothing
+	 * @param cacheSeconds how long the encoded reply may be replayed from the wire cache
+	 */
+	static void sendDNSReply(DNS dnsPacket, ReplyTarget client, int udpPayloadSize, long cacheSeconds)
+			throws IOException{
+		Ec2Table table = ec2Table.get();
+		if(dnsPacket.getQuestions().get(0).getType() == DNS.TYPE_A){
+			Log.debug("********** Checking if in EC2 regions ************");
+			addEC2ToAns(dnsPacket, table);
+			Log.debug("************** Checking done *********************");
+		}
+		SendBuffer out = SendBuffer.acquire();
+		try {
+			int length = out.encode(dnsPacket).limit();
+			// Cached without OPT, which is added per client on the way out
+			if (wireCache != null && cacheSeconds > 0) {
+				wireCache.put(out.array(), length, table, cacheSeconds, System.currentTimeMillis());
+			}
+			if (client != null) {
+				sendToClient(out.array(), length, client, udpPayloadSize);
+			}
+		} finally {
+			out.release();
+		}
+		Log.debug("Sent answer to client");
 	}
 
-	private static void sendDNSReply(DNS dnsPacket, DatagramPacket dnsReceived) throws IOException{
-		if(dnsPacket.getQuestions().get(0).getType() == DNS.TYPE_A){
-			System.out.println("********** Checking if in EC2 regions ************");
-			addEC2ToAns(dnsPacket);
-			System.out.println("************** Checking done *********************");
+	/** Startup load; a missing or unreadable file leaves an empty table */
+	private static Ec2Table loadEC2Table(String file) {
+		Log.info("Loading static EC2 table from {}", file);
+		try {
+			return readEC2Table(file);
+		} catch (IOException e) {
+			Log.error("Cannot read EC2 table {}, starting with an empty one", file, e);
+			return new Ec2Table(new HashMap<String, String>());
 		}
-		DatagramPacket ans = new DatagramPacket(dnsPacket.serialize(), 0, dnsPacket.getLength(), dnsReceived.getSocketAddress());
-		serverSocket.send(ans);
-		System.out.println("Sent answer to client");
 	}
 
-	/** Map(ip/subnetLength -> geoLocation) */
-	private static Map<String, String> loadEC2Table(String file) {
-		System.out.println("Loading static EC2 table from " + file);
+	/** Reads map(ip/subnetLength -> geoLocation) and flattens it into a lookup table */
+	static Ec2Table readEC2Table(String file) throws IOException {
 		Map<String, String> ec2Map = new HashMap<String, String>();
-		BufferedReader br = null;
 		String line;
 		String cvsDelimiter = ",";
+		BufferedReader br = new BufferedReader(new FileReader(file));
 		try {
-			br = new BufferedReader(new FileReader(file));
 			while ((line = br.readLine()) != null) {
 				String[] entry = line.split(cvsDelimiter);
+				if (entry.length < 2) {
+					continue;
+				}
 				String ip = entry[0];
 				String location = entry[1];
 				ec2Map.put(ip, location);
 			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
 		} finally {
-			if (br != null) {
-				try {
-					br.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
+			br.close();
 		}
-		return ec2Map;
+		Ec2Table table = new Ec2Table(ec2Map);
+		Log.info("Loaded {} EC2 ranges as {} intervals", ec2Map.size(), table.size());
+		return table;
 	}
 
-	private static void addEC2ToAns(DNS dnsPacket){
-		for (int i = 0; i < dnsPacket.getAnswers().size(); i++) {
-			if (dnsPacket.getAnswers().get(i).getType() != DNS.TYPE_A){
-				System.out.println("Not an IPv4 address");
+	/** Appends a TXT answer naming the EC2 region for every A answer inside EC2 */
+	static void addEC2ToAns(DNS dnsPacket, Ec2Table table){
+		List<DNSResourceRecord> answers = dnsPacket.getAnswers();
+		for (int i = 0, n = answers.size(); i < n; i++) {
+			DNSRdata data = answers.get(i).getData();
+			if (answers.get(i).getType() != DNS.TYPE_A || !(data instanceof DNSRdataAddress)
+					|| !((DNSRdataAddress) data).isIpv4()){
+				Log.debug("Not an IPv4 address");
 				continue;
 			}
-			DNSRdataAddress addressData = (DNSRdataAddress) dnsPacket.getAnswers().get(i).getData();
-			String addressString = addressData.getAddress().toString();
-			String ipStr = addressString.substring(addressString.indexOf("/") + 1); // e.g. 73.252.22.1
-			System.out.println("Checking if address " + ipStr + " is in EC2");
-			boolean found = false;
-			for (String entry : ec2Table.keySet()) {
-				long ip = parseIp(ipStr);
-				long serverIP = parseIp(entry.substring(0, entry.indexOf("/")));
-				int subnetLength = Integer.parseInt(entry.substring(entry.indexOf("/") + 1));
-				long subnetBits = 0xffffffff - ((1 << (32 - subnetLength)) - 1);
-				if ((subnetBits & ip) == (subnetBits & serverIP)) {
-					found = true;
-					String location = ec2Table.get(entry);
-					DNSRdataString txt = new DNSRdataString(location + "-" + ip);
-					DNSResourceRecord record = new DNSResourceRecord();
-					record.setType(DNS.TYPE_TXT);
-					record.setName(addressData.toString());
-					record.setData(txt);
-					dnsPacket.addAnswer(record);
-				}
+			DNSRdataAddress addressData = (DNSRdataAddress) data;
+			int ip = addressData.getIpv4();
+			Log.debug("Checking if address {} is in EC2", addressData);
+			int region = table.find(ip);
+			metrics.onEc2Check(region >= 0);
+			if (region >= 0) {
+				DNSRdataString txt = new DNSRdataString(table.region(region) + "-" + (ip & 0xffffffffL));
+				DNSResourceRecord record = new DNSResourceRecord();
+				record.setType(DNS.TYPE_TXT);
+				record.setName(addressData.toString());
+				record.setData(txt);
+				dnsPacket.addAnswer(record);
+				Log.debug("This ip is found in EC2");
+			} else {
+				Log.debug("This ip is NOT found in EC2");
 			}
-			if (found) System.out.println("This ip is found in EC2");
-			else System.out.println("This ip is NOT found in EC2");
-		}
-	}
-
-	private static long parseIp(String address) {
-		long result = 0;
-
-		// iterate over each octet
-		for(String part : address.split(Pattern.quote("."))) {
-			// shift the previously parsed bits over by 1 byte
-			result = result << 8;
-			// set the low order bits to the current octet
-			result |= Integer.parseInt(part);
 		}
-		return result;
 	}
 }
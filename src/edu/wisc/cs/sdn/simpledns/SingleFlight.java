@@ -0,0 +1,160 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Resolutions in flight, keyed by (name, type, class). The first query for a question
+ * resolves it; identical queries arriving meanwhile only wait for that result and get a
+ * copy under their own ID, so a burst for one name costs the authorities a single lookup.
+ */
+class SingleFlight
+{
+	/** Waiters per resolution; past this, queries are dropped and the clients retry */
+	private final static int MAX_FOLLOWERS = 1024;
+
+	/** A client query waiting on a resolution; it is answered at most once, by whoever claims it */
+	static final class Waiter
+	{
+		private final DNS query;
+		private final ReplyTarget client;
+		/** When the query arrived (nanoTime) */
+		private final long receivedAt;
+		private final boolean leader;
+		private final AtomicBoolean replied = new AtomicBoolean();
+
+		private Waiter(DNS query, ReplyTarget client, long receivedAt, boolean leader) {
+			this.query = query;
+			this.client = client;
+			this.receivedAt = receivedAt;
+			this.leader = leader;
+		}
+
+		DNS getQuery() {
+			return query;
+		}
+
+		ReplyTarget getClient() {
+			return client;
+		}
+
+		long getReceivedAt() {
+			return receivedAt;
+		}
+
+		/** True if this query started the resolution and has to run it */
+		boolean isLeader() {
+			return leader;
+		}
+
+		/** @return true for the one caller that may now reply to this query */
+		boolean claim() {
+			return replied.compareAndSet(false, true);
+		}
+
+		/** reply rebuilt for this query's ID, question and flags */
+		DNS replyFrom(DNS reply) {
+			DNS copy = Resolution.newReply(query);
+			copy.setRcode(reply.getRcode());
+			copy.setAnswers(new ArrayList<DNSResourceRecord>(reply.getAnswers()));
+			copy.setAuthorities(new ArrayList<DNSResourceRecord>(reply.getAuthorities()));
+			copy.setAdditional(new ArrayList<DNSResourceRecord>(reply.getAdditional()));
+			return copy;
+		}
+	}
+
+	private static final class Flight
+	{
+		private final DNS leader;
+		/** Every client waiting, the leader's first unless it is a prefetch with no client */
+		private final List<Waiter> waiters = new ArrayList<Waiter>();
+		private boolean closed;
+
+		private Flight(DNS leader) {
+			this.leader = leader;
+		}
+
+		/** A retransmission of a query already waiting here needs no second reply */
+		private boolean isWaiting(DNS query, ReplyTarget client) {
+			for (Waiter w : waiters) {
+				if (w.query.getId() == query.getId() && w.client.equals(client)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private final ConcurrentHashMap<CacheKey, Flight> flights = new ConcurrentHashMap<CacheKey, Flight>();
+
+	int size() {
+		return flights.size();
+	}
+
+	/**
+	 * Leads a new resolution for query, or waits on the one already in flight.
+	 * @param receivedAt when query arrived (nanoTime), to measure its latency by
+	 * @return the query's place in the resolution (see {@link Waiter#isLeader()}), or null if
+	 *         it was dropped as a retransmission or because too many queries are waiting
+	 */
+	Waiter join(DNS query, ReplyTarget client, long receivedAt) {
+		CacheKey key = CacheKey.of(query.getQuestions().get(0));
+		Flight flight = new Flight(query);
+		Waiter leader = new Waiter(query, client, receivedAt, true);
+		flight.waiters.add(leader);
+		while (true) {
+			Flight existing = flights.putIfAbsent(key, flight);
+			if (existing == null) {
+				return leader;
+			}
+			synchronized (existing) {
+				if (!existing.closed) {
+					if (existing.isWaiting(query, client)) {
+						if (Log.isDebugEnabled()) {
+							Log.debug("Duplicate of a query in flight, ignoring {}", query.getId());
+						}
+						return null;
+					}
+					if (existing.waiters.size() > MAX_FOLLOWERS) {
+						Log.warn("Too many waiters for {}, dropping query {}", key, query.getId());
+						return null;
+					}
+					Waiter follower = new Waiter(query, client, receivedAt, false);
+					existing.waiters.add(follower);
+					Log.debug("Waiting on resolution in flight for {}", key);
+					return follower;
+				}
+			}
+			// Finished while we looked at it; try again to lead or join the next one
+		}
+	}
+
+	/**
+	 * Starts a resolution for query with nobody waiting on it yet, unless one is in flight.
+	 * @return true if the caller now leads the resolution and has to run it
+	 */
+	boolean lead(DNS query) {
+		return flights.putIfAbsent(CacheKey.of(query.getQuestions().get(0)), new Flight(query)) == null;
+	}
+
+	/**
+	 * Ends the resolution led by leaderQuery.
+	 * @return the queries that waited on it, leader included; empty if it was already over
+	 */
+	List<Waiter> complete(DNS leaderQuery) {
+		CacheKey key = CacheKey.of(leaderQuery.getQuestions().get(0));
+		Flight flight = flights.get(key);
+		if (flight == null || flight.leader != leaderQuery || !flights.remove(key, flight)) {
+			return Collections.emptyList();
+		}
+		synchronized (flight) {
+			flight.closed = true;
+			return flight.waiters;
+		}
+	}
+}
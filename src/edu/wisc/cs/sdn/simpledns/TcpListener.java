@@ -0,0 +1,241 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client-facing DNS over TCP (RFC 7766). A connection's queries are read back to back and go
+ * through the same pipeline as UDP ones, so several resolve at once; each reply is written as
+ * soon as it is ready, in whatever order that is, and the client matches them up by ID.
+ */
+final class TcpListener implements Runnable
+{
+	private final static int MAX_CONNECTIONS = 256;
+	/** Connections sending no query for this long are closed */
+	private final static int IDLE_TIMEOUT_MILLIS = 10000;
+	/** Replies waiting to be written to one connection before it is dropped as not reading */
+	private final static int MAX_QUEUED_REPLIES = 64;
+
+	/**
+	 * A client connection. Replies are queued and written by the connection's own thread, so a
+	 * client that stops reading holds up nobody but itself; once its queue is full it is dropped.
+	 */
+	static final class Connection implements ReplyTarget
+	{
+		private final Socket socket;
+		private final OutputStream out;
+		private final BlockingQueue<byte[]> replies = new ArrayBlockingQueue<byte[]>(MAX_QUEUED_REPLIES);
+		private final Thread writer;
+		private volatile boolean closed;
+		/** Queries read that have no reply queued yet; guarded by this */
+		private int unanswered;
+		/** Replies queued but not yet flushed; guarded by this */
+		private int unwritten;
+
+		private Connection(Socket socket, String name) throws IOException {
+			this.socket = socket;
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+			this.writer = new Thread(new Runnable() {
+				public void run() {
+					writeReplies();
+				}
+			}, name + "-writer");
+			this.writer.setDaemon(true);
+			this.writer.start();
+		}
+
+		public boolean isStream() {
+			return true;
+		}
+
+		/** Queues a reply with its length prefix; a client that hung up just misses it */
+		public void send(byte[] message, int length) {
+			if (closed) {
+				return;
+			}
+			byte[] framed = new byte[length + 2];
+			framed[0] = (byte) (length >>> 8);
+			framed[1] = (byte) length;
+			System.arraycopy(message, 0, framed, 2, length);
+			synchronized (this) {
+				unanswered = Math.max(0, unanswered - 1);
+				unwritten++;
+			}
+			if (!replies.offer(framed)) {
+				Log.warn("{} is not reading its answers, closing", this);
+				close();
+			}
+		}
+
+		private synchronized void onQuery() {
+			unanswered++;
+		}
+
+		/**
+		 * After the client closed its side (RFC 7766 allows it once the queries are sent),
+		 * waits until every query read so far has its reply written, or timeoutMillis pass.
+		 * Queries dropped without a reply make it wait the whole timeout.
+		 */
+		private synchronized void drain(int timeoutMillis) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			while (!closed && (unanswered > 0 || unwritten > 0)) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					return;
+				}
+				wait(left);
+			}
+		}
+
+		/** Writer thread: flushes once the queue runs dry, so a burst of replies goes out together */
+		private void writeReplies() {
+			try {
+				int batch = 0;
+				while (true) {
+					byte[] framed = replies.poll();
+					if (framed == null) {
+						out.flush();
+						synchronized (this) {
+							unwritten -= batch;
+							notifyAll();
+						}
+						batch = 0;
+						framed = replies.take();
+					}
+					out.write(framed);
+					batch++;
+				}
+			} catch (InterruptedException e) {
+				// Closed
+			} catch (IOException e) {
+				if (!closed) {
+					Log.debug("Failed to send answer to {}: {}", this, e.getMessage());
+				}
+				close();
+			}
+		}
+
+		private void close() {
+			closed = true;
+			synchronized (this) {
+				notifyAll();
+			}
+			writer.interrupt();
+			replies.clear();
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Nothing left to release
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "tcp:" + socket.getRemoteSocketAddress();
+		}
+	}
+
+	private final ServerSocket serverSocket;
+	private final Semaphore permits = new Semaphore(MAX_CONNECTIONS);
+	private final AtomicInteger count = new AtomicInteger();
+
+	TcpListener(ServerSocket serverSocket) {
+		this.serverSocket = serverSocket;
+	}
+
+	void start() {
+		Thread t = new Thread(this, "dns-tcp-listener");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public void run() {
+		while (true) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				Log.error("TCP listener stopped", e);
+				return;
+			}
+			if (!permits.tryAcquire()) {
+				Log.warn("Too many TCP connections, refusing {}", socket.getRemoteSocketAddress());
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// Nothing left to release
+				}
+				continue;
+			}
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					try {
+						serve(socket);
+					} finally {
+						permits.release();
+					}
+				}
+			}, "dns-tcp-" + count.incrementAndGet());
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	private void serve(Socket socket) {
+		byte[] buffer = new byte[SimpleDNS.MAX_PACKET_SIZE];
+		Connection connection = null;
+		try {
+			socket.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+			socket.setTcpNoDelay(true);
+			connection = new Connection(socket, Thread.currentThread().getName());
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			while (true) {
+				int length = in.readUnsignedShort();
+				if (length > buffer.length) {
+					Log.warn("Oversized query from {}, closing", connection);
+					break;
+				}
+				in.readFully(buffer, 0, length);
+				connection.onQuery();
+				try {
+					SimpleDNS.handleClientQuery(buffer, length, connection);
+				} catch (RuntimeException e) {
+					// The connection's next queries still get served; traced only when debugging,
+					// as any client can trigger this
+					Log.debug("Query from {} failed", connection, e);
+				}
+			}
+		} catch (EOFException e) {
+			// Client is done sending; answers still in flight are written before closing
+			try {
+				connection.drain(IDLE_TIMEOUT_MILLIS);
+			} catch (InterruptedException i) {
+				Thread.currentThread().interrupt();
+			}
+		} catch (SocketTimeoutException e) {
+			// Idle too long
+		} catch (IOException e) {
+			Log.debug("TCP connection from {} failed: {}", socket.getRemoteSocketAddress(), e.getMessage());
+		} finally {
+			if (connection != null) {
+				connection.close();
+			} else {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// Nothing left to release
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import java.util.List;
+
+/**
+ * Hashed timer wheel: scheduling and cancelling are O(1), and expiry is checked one
+ * tick-sized bucket at a time. Not thread-safe; owned by a single event loop.
+ */
+class TimerWheel<T>
+{
+	static final class Timeout<T>
+	{
+		private final T item;
+		private final long tick;
+		private Timeout<T> prev;
+		private Timeout<T> next;
+		private boolean linked;
+
+		private Timeout(T item, long tick) {
+			this.item = item;
+			this.tick = tick;
+		}
+
+		T getItem() {
+			return item;
+		}
+	}
+
+	private final Timeout<T>[] slots;
+	private final int mask;
+	private final long tickMillis;
+	private final long originMillis;
+	private long currentTick;
+	private int size;
+
+	@SuppressWarnings("unchecked")
+	TimerWheel(int slotCount, long tickMillis, long nowMillis) {
+		int n = Integer.highestOneBit(Math.max(slotCount - 1, 1)) << 1;
+		this.slots = (Timeout<T>[]) new Timeout<?>[n];
+		this.mask = n - 1;
+		this.tickMillis = tickMillis;
+		this.originMillis = nowMillis;
+	}
+
+	int size() {
+		return size;
+	}
+
+	Timeout<T> schedule(T item, long delayMillis, long nowMillis) {
+		long tick = (nowMillis - originMillis + delayMillis + tickMillis - 1) / tickMillis;
+		Timeout<T> timeout = new Timeout<T>(item, Math.max(tick, currentTick + 1));
+		int slot = (int) (timeout.tick & mask);
+		timeout.next = slots[slot];
+		if (timeout.next != null) {
+			timeout.next.prev = timeout;
+		}
+		slots[slot] = timeout;
+		timeout.linked = true;
+		size++;
+		return timeout;
+	}
+
+	void cancel(Timeout<T> timeout) {
+		if (!timeout.linked) {
+			return;
+		}
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			slots[(int) (timeout.tick & mask)] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.linked = false;
+		size--;
+	}
+
+	/** Advances the wheel to nowMillis, moving every expired item into expired */
+	void expire(long nowMillis, List<T> expired) {
+		long target = (nowMillis - originMillis) / tickMillis;
+		// After a long stall one lap over the wheel is enough to see every slot
+		long steps = Math.min(target - currentTick, slots.length);
+		for (long i = 1; i <= steps; i++) {
+			Timeout<T> timeout = slots[(int) ((currentTick + i) & mask)];
+			while (timeout != null) {
+				Timeout<T> next = timeout.next;
+				if (timeout.tick <= target) {
+					cancel(timeout);
+					expired.add(timeout.item);
+				}
+				timeout = next;
+			}
+		}
+		if (target > currentTick) {
+			currentTick = target;
+		}
+	}
+}
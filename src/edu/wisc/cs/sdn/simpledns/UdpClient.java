@@ -0,0 +1,41 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+
+/** A client that asked over UDP; replies go back from the socket the query came in on */
+final class UdpClient implements ReplyTarget
+{
+	private final DatagramSocket socket;
+	private final SocketAddress address;
+
+	UdpClient(DatagramSocket socket, SocketAddress address) {
+		this.socket = socket;
+		this.address = address;
+	}
+
+	public boolean isStream() {
+		return false;
+	}
+
+	public void send(byte[] message, int length) throws IOException {
+		socket.send(new DatagramPacket(message, 0, length, address));
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof UdpClient && ((UdpClient) o).address.equals(address);
+	}
+
+	@Override
+	public int hashCode() {
+		return address.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return address.toString();
+	}
+}
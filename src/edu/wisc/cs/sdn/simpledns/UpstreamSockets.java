@@ -0,0 +1,243 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fixed set of long-lived upstream channels shared by the blocking engines, each bound to a
+ * random source port. Queries go out under random IDs, both drawn from {@link RandomIds}; one
+ * receive thread per channel hands each reply to the exchange waiting for that (server, port,
+ * ID, question), so sockets and ports in use stay the same at any query rate.
+ */
+final class UpstreamSockets
+{
+	private final static int MAX_ID_ATTEMPTS = 16;
+	private final static int MAX_PORT_ATTEMPTS = 16;
+	/** Source ports are drawn from above the well-known range */
+	private final static int MIN_PORT = 1024;
+	/** Longest pause of a receive thread whose socket keeps failing */
+	private final static long MAX_BACKOFF_MILLIS = 1000;
+
+	/** One hop of a resolution: its query, possibly sent to several servers, and the first reply */
+	static final class Exchange
+	{
+		private final DatagramChannel channel;
+		private final List<Key> keys = new ArrayList<Key>(2);
+		private final AtomicBoolean answered = new AtomicBoolean();
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile DNS response;
+		private volatile InetAddress from;
+
+		private Exchange(DatagramChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Waits up to millis for a reply.
+		 * @return true once one has arrived
+		 */
+		boolean await(long millis) {
+			try {
+				return done.await(Math.max(0, millis), TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return done.getCount() == 0;
+			}
+		}
+
+		/** First reply to any copy of the query, or null */
+		DNS getResponse() {
+			return response;
+		}
+
+		/** Server the reply came from, or null */
+		InetAddress getFrom() {
+			return from;
+		}
+
+		private void complete(DNS response, InetAddress from) {
+			if (answered.compareAndSet(false, true)) {
+				this.response = response;
+				this.from = from;
+				done.countDown();
+			}
+		}
+	}
+
+	private static final class Key
+	{
+		private final InetAddress server;
+		private final int port;
+		private final short id;
+		private final DNSName name;
+		private final short type;
+
+		private Key(InetAddress server, int port, short id, DNSName name, short type) {
+			this.server = server;
+			this.port = port;
+			this.id = id;
+			this.name = name;
+			this.type = type;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return id == other.id && type == other.type && port == other.port && server.equals(other.server)
+					&& name.equals(other.name);
+		}
+
+		@Override
+		public int hashCode() {
+			return (((31 * id + type) * 31 + port) * 31 + server.hashCode()) * 31 + name.hashCode();
+		}
+	}
+
+	private final DatagramChannel[] channels;
+	private final ConcurrentHashMap<Key, Exchange> pending = new ConcurrentHashMap<Key, Exchange>();
+
+	UpstreamSockets(int count) throws IOException {
+		channels = new DatagramChannel[count];
+		for (int i = 0; i < count; i++) {
+			channels[i] = DatagramChannel.open();
+			bindRandomPort(channels[i]);
+		}
+	}
+
+	/** Starts one receive thread per channel */
+	void start() {
+		for (int i = 0; i < channels.length; i++) {
+			final DatagramChannel channel = channels[i];
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					receive(channel);
+				}
+			}, "dns-upstream-" + (i + 1));
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/** Binds channel to a random unprivileged port, or to any free one if those keep colliding */
+	static void bindRandomPort(DatagramChannel channel) throws IOException {
+		for (int i = 0; i < MAX_PORT_ATTEMPTS; i++) {
+			try {
+				channel.bind(new InetSocketAddress(RandomIds.nextPort(MIN_PORT)));
+				return;
+			} catch (IOException e) {
+				// Port taken, draw again
+			}
+		}
+		channel.bind(null);
+	}
+
+	/** A new exchange on one of the channels, chosen at random */
+	Exchange open() {
+		return new Exchange(channels[RandomIds.nextShort() % channels.length]);
+	}
+
+	/**
+	 * Sends query to server on behalf of exchange, under a fresh random ID.
+	 * @return false if no ID was free
+	 */
+	boolean send(Exchange exchange, DNS query, InetAddress server) throws IOException {
+		DNSQuestion q = query.getQuestions().get(0);
+		Key key = null;
+		for (int i = 0; i < MAX_ID_ATTEMPTS && key == null; i++) {
+			key = new Key(server, SimpleDNS.QUERY_DNS_PORT, (short) RandomIds.nextShort(),
+					q.getDomainName(), q.getType());
+			if (pending.putIfAbsent(key, exchange) != null) {
+				key = null;
+			}
+		}
+		if (key == null) {
+			Log.warn("No free transaction ID for {}", q.getName());
+			return false;
+		}
+		synchronized (exchange.keys) {
+			exchange.keys.add(key);
+		}
+		query.setId(key.id);
+		SendBuffer out = SendBuffer.acquire();
+		try {
+			exchange.channel.send(out.encode(query), new InetSocketAddress(server, SimpleDNS.QUERY_DNS_PORT));
+		} finally {
+			out.release();
+		}
+		return true;
+	}
+
+	/** Stops matching replies to exchange; later ones are dropped as late */
+	void close(Exchange exchange) {
+		synchronized (exchange.keys) {
+			for (Key key : exchange.keys) {
+				pending.remove(key, exchange);
+			}
+			exchange.keys.clear();
+		}
+	}
+
+	private void receive(DatagramChannel channel) {
+		ByteBuffer buffer = ByteBuffer.allocate(SimpleDNS.MAX_PACKET_SIZE);
+		int failures = 0;
+		while (true) {
+			InetSocketAddress from;
+			try {
+				buffer.clear();
+				from = (InetSocketAddress) channel.receive(buffer);
+				failures = 0;
+			} catch (ClosedChannelException e) {
+				Log.info("Upstream channel {} closed, receive thread stopping", channel);
+				return;
+			} catch (IOException e) {
+				// Backs off exponentially, and logs each time the failure count doubles
+				failures++;
+				if ((failures & (failures - 1)) == 0) {
+					Log.error("Upstream receive failed {} times in a row: {}", failures, e);
+				}
+				try {
+					Thread.sleep(Math.min(MAX_BACKOFF_MILLIS, 1L << Math.min(failures, 10)));
+				} catch (InterruptedException i) {
+					return;
+				}
+				continue;
+			}
+			// Match on the raw header and question; only replies someone waits for get decoded
+			DNSView view = DNSView.wrap(buffer.array(), buffer.position());
+			if (view == null || view.isQuery() || view.getQuestionCount() == 0 || !view.isWellFormed()) {
+				// Truncated or garbage datagram
+				continue;
+			}
+			Exchange exchange;
+			DNS response;
+			try {
+				exchange = pending.get(new Key(from.getAddress(), from.getPort(), view.getId(),
+						view.getQuestionName(0), view.getQuestionType(0)));
+				if (exchange == null) {
+					// Late, duplicate or spoofed reply
+					continue;
+				}
+				response = view.toDNS();
+			} catch (RuntimeException e) {
+				// Undecodable, e.g. a compression pointer loop; anyone can send us those
+				continue;
+			}
+			exchange.complete(response, from.getAddress());
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.*;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Asks authoritative servers over TCP, for replies that came back truncated over UDP.
+ * Connections are kept open after use and reused for the next query to the same server
+ * (RFC 7766); a server that closed one in the meantime just costs a reconnect.
+ */
+final class UpstreamTcp
+{
+	/** Idle connections kept per server */
+	private final static int MAX_IDLE_PER_SERVER = 4;
+	/** Connections idle longer than this are assumed closed by the server */
+	private final static long MAX_IDLE_MILLIS = 10000;
+	private final static int THREADS = 4;
+	private final static int BACKLOG = 256;
+
+	/** Receives the reply of {@link #exchangeLater}, or null if there was none */
+	interface Callback
+	{
+		void onResponse(DNS response);
+	}
+
+	private static final class Connection
+	{
+		private final Socket socket;
+		private final DataInputStream in;
+		private final OutputStream out;
+		private long idleSince;
+
+		private Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new DataInputStream(socket.getInputStream());
+			this.out = socket.getOutputStream();
+		}
+
+		private void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Nothing left to release
+			}
+		}
+	}
+
+	private final ConcurrentHashMap<InetAddress, Queue<Connection>> idle = new ConcurrentHashMap<InetAddress, Queue<Connection>>();
+	private final ExecutorService workers = SimpleDNS.createWorkerPool(THREADS, BACKLOG);
+
+	/**
+	 * Sends query to server over TCP and waits for the reply.
+	 * @return the reply, or null if the server could not be reached or did not answer in time
+	 */
+	DNS exchange(DNS query, InetAddress server, int timeoutMillis) {
+		Connection c = checkOut(server);
+		boolean reused = c != null;
+		while (true) {
+			try {
+				if (c == null) {
+					c = connect(server, timeoutMillis);
+				}
+				return exchange(c, query, server, timeoutMillis);
+			} catch (IOException e) {
+				if (c != null) {
+					c.close();
+				}
+				if (!reused || e instanceof SocketTimeoutException) {
+					Log.debug("TCP query to {} failed: {}", server, e.getMessage());
+					return null;
+				}
+				// The server closed it while idle; one fresh connection gets a fair try
+				c = null;
+				reused = false;
+			}
+		}
+	}
+
+	/**
+	 * {@link #exchange(DNS, InetAddress, int)} on a pooled thread, for callers that must not block.
+	 * Once queued, done is called exactly once, with null if the exchange failed in any way.
+	 * @return false if too many exchanges are queued already; done is not called then
+	 */
+	boolean exchangeLater(final DNS query, final InetAddress server, final int timeoutMillis, final Callback done) {
+		try {
+			workers.execute(new Runnable() {
+				public void run() {
+					DNS response = null;
+					try {
+						response = exchange(query, server, timeoutMillis);
+					} catch (RuntimeException e) {
+						// Whatever went wrong, the caller still has to hear back
+						Log.error("TCP query to {} failed", server, e);
+					}
+					done.onResponse(response);
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	private DNS exchange(Connection c, DNS query, InetAddress server, int timeoutMillis) throws IOException {
+		short id = (short) RandomIds.nextShort();
+		query.setId(id);
+		c.socket.setSoTimeout(timeoutMillis);
+		SendBuffer out = SendBuffer.acquire();
+		try {
+			ByteBuffer message = out.encode(query);
+			byte[] framed = new byte[message.limit() + 2];
+			framed[0] = (byte) (message.limit() >>> 8);
+			framed[1] = (byte) message.limit();
+			message.get(framed, 2, message.limit());
+			c.out.write(framed);
+		} finally {
+			out.release();
+		}
+		// One query at a time per connection, and one that timed out is closed, so this is ours
+		byte[] reply = new byte[c.in.readUnsignedShort()];
+		c.in.readFully(reply);
+		DNSView view = DNSView.wrap(reply, reply.length);
+		if (view == null || view.isQuery() || view.getId() != id || !view.isWellFormed()) {
+			throw new IOException("malformed reply");
+		}
+		DNS response;
+		try {
+			response = view.toDNS();
+		} catch (RuntimeException e) {
+			// Question name that does not decode; the connection is closed like after any bad reply
+			throw new IOException("malformed reply", e);
+		}
+		checkIn(server, c);
+		return response;
+	}
+
+	private Connection connect(InetAddress server, int timeoutMillis) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(server, SimpleDNS.QUERY_DNS_PORT), timeoutMillis);
+			return new Connection(socket);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	private Connection checkOut(InetAddress server) {
+		Queue<Connection> connections = idle.get(server);
+		if (connections == null) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		Connection c;
+		while ((c = connections.poll()) != null) {
+			if (now - c.idleSince < MAX_IDLE_MILLIS && !c.socket.isClosed()) {
+				return c;
+			}
+			c.close();
+		}
+		return null;
+	}
+
+	private void checkIn(InetAddress server, Connection c) {
+		Queue<Connection> connections = idle.get(server);
+		if (connections == null) {
+			Queue<Connection> fresh = new ConcurrentLinkedQueue<Connection>();
+			connections = idle.putIfAbsent(server, fresh);
+			if (connections == null) {
+				connections = fresh;
+			}
+		}
+		if (connections.size() >= MAX_IDLE_PER_SERVER) {
+			c.close();
+			return;
+		}
+		c.idleSince = System.currentTimeMillis();
+		connections.offer(c);
+	}
+}
@@ -0,0 +1,141 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNSName;
+import edu.wisc.cs.sdn.simpledns.packet.DNSView;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finished replies kept exactly as they went on the wire, EC2 annotations included.
+ * A hit copies the bytes and patches the transaction ID, the question (for the client's
+ * letter case) and every TTL in place, so no message is decoded or encoded. Entries are tied
+ * to the EC2 table they were annotated with and die when it is reloaded.
+ */
+class WireCache
+{
+	private final static int HEADER_LENGTH = 12;
+
+	private static final class Entry
+	{
+		private final byte[] message;
+		private final int questionEnd;
+		/** Absolute offsets of each record's TTL field, and the TTL stored there */
+		private final int[] ttlOffsets;
+		private final int[] ttls;
+		private final Ec2Table ec2Table;
+		private final long storedAt;
+		private final long expiresAt;
+		private final AtomicInteger hits = new AtomicInteger();
+		private final AtomicBoolean refreshing = new AtomicBoolean();
+
+		private Entry(byte[] message, int questionEnd, int[] ttlOffsets, int[] ttls, Ec2Table ec2Table,
+				long storedAt, long expiresAt) {
+			this.message = message;
+			this.questionEnd = questionEnd;
+			this.ttlOffsets = ttlOffsets;
+			this.ttls = ttls;
+			this.ec2Table = ec2Table;
+			this.storedAt = storedAt;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final ConcurrentHashMap<CacheKey, Entry> entries = new ConcurrentHashMap<CacheKey, Entry>();
+	private final int capacity;
+	private final RefreshAhead refreshAhead;
+
+	/** @param refreshAhead when to refresh popular entries, or null to let them expire */
+	WireCache(int capacity, RefreshAhead refreshAhead) {
+		this.capacity = capacity;
+		this.refreshAhead = refreshAhead;
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Writes the cached reply to query into out.
+	 * @param name the query's question name, already decoded (and so known to be decodable)
+	 * @return the reply's length, or -1 on a miss
+	 */
+	int copyTo(DNSView query, DNSName name, byte[] queryData, Ec2Table currentEc2Table, byte[] out, long nowMillis) {
+		CacheKey key = new CacheKey(name, query.getQuestionType(0), query.getQuestionClass(0));
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			return -1;
+		}
+		if (nowMillis >= entry.expiresAt || entry.ec2Table != currentEc2Table) {
+			entries.remove(key, entry);
+			return -1;
+		}
+		if (query.getQuestionEndOffset(0) != entry.questionEnd || entry.message.length > out.length) {
+			// Question written differently (e.g. compressed), so it cannot be patched over ours
+			return -1;
+		}
+		if (refreshAhead != null && refreshAhead.onHit(entry.hits, entry.refreshing, entry.storedAt, entry.expiresAt, nowMillis)) {
+			refreshAhead.refresh(query.getQuestion(0), entry.refreshing);
+		}
+
+		int length = entry.message.length;
+		System.arraycopy(entry.message, 0, out, 0, length);
+		out[0] = queryData[0];
+		out[1] = queryData[1];
+		System.arraycopy(queryData, HEADER_LENGTH, out, HEADER_LENGTH, entry.questionEnd - HEADER_LENGTH);
+		int aged = (int) ((nowMillis - entry.storedAt) / 1000);
+		for (int i = 0; i < entry.ttlOffsets.length; i++) {
+			int ttl = Math.max(0, entry.ttls[i] - aged);
+			int pos = entry.ttlOffsets[i];
+			out[pos] = (byte) (ttl >>> 24);
+			out[pos + 1] = (byte) (ttl >>> 16);
+			out[pos + 2] = (byte) (ttl >>> 8);
+			out[pos + 3] = (byte) ttl;
+		}
+		return length;
+	}
+
+	/** Remembers the first length bytes of message, an encoded reply, for ttlSeconds */
+	void put(byte[] message, int length, Ec2Table ec2Table, long ttlSeconds, long nowMillis) {
+		if (ttlSeconds <= 0) {
+			return;
+		}
+		byte[] copy = Arrays.copyOf(message, length);
+		DNSView view = DNSView.wrap(copy, length);
+		if (view == null || view.getQuestionCount() != 1 || !view.isWellFormed()) {
+			return;
+		}
+		int records = view.getRecordCount();
+		int[] ttlOffsets = new int[records];
+		int[] ttls = new int[records];
+		for (int i = 0; i < records; i++) {
+			ttlOffsets[i] = view.getRecordTtlOffset(i);
+			ttls[i] = view.getRecordTtl(i);
+		}
+		CacheKey key = new CacheKey(view.getQuestionName(0), view.getQuestionType(0), view.getQuestionClass(0));
+		if (entries.size() >= capacity) {
+			evict(nowMillis);
+		}
+		entries.put(key, new Entry(copy, view.getQuestionEndOffset(0), ttlOffsets, ttls, ec2Table,
+				nowMillis, nowMillis + ttlSeconds * 1000));
+	}
+
+	/** Drops expired entries, then arbitrary ones, until a tenth of the capacity is free */
+	private void evict(long nowMillis) {
+		int target = capacity - Math.max(1, capacity / 10);
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			if (nowMillis >= it.next().expiresAt) {
+				it.remove();
+			}
+		}
+		it = entries.values().iterator();
+		while (entries.size() > target && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+}
@@ -1,8 +1,8 @@
 package edu.wisc.cs.sdn.simpledns.packet;
 
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class DNS 
@@ -10,10 +10,15 @@ public class DNS
 	public static final short TYPE_A = 1;
 	public static final short TYPE_NS = 2;
 	public static final short TYPE_CNAME = 5;
+	public static final short TYPE_SOA = 6;
 	public static final short TYPE_AAAA = 28;
 	public static final short TYPE_CDN = 258;
 	public static final short TYPE_EC2 = 259;
 	public static final short TYPE_TXT = 16;
+	/** EDNS pseudo-record (RFC 6891): class is the UDP payload size, TTL holds flags */
+	public static final short TYPE_OPT = 41;
+	/** Every resolver takes this much over UDP (RFC 1035); smaller EDNS sizes mean this */
+	public static final int MIN_UDP_PAYLOAD_SIZE = 512;
 	
 	public static final short CLASS_IN = 1;
 	
@@ -21,7 +26,10 @@ public class DNS
 	
 	public static final byte RCODE_NO_ERROR = 0;
 	public static final byte RCODE_FORMAT_ERROR = 1;
+	public static final byte RCODE_SERVER_FAILURE = 2;
+	public static final byte RCODE_NAME_ERROR = 3;
 	public static final byte RCODE_NOT_IMPLEMENTED = 4;
+	public static final byte RCODE_REFUSED = 5;
 	
 	private short id;
 	private boolean query;
@@ -156,6 +164,48 @@ public class DNS
 	public void removeAdditional(DNSResourceRecord additional)
 	{ this.additional.remove(additional); }
 	
+	/** @return the OPT pseudo-record, or null if the message does not use EDNS */
+	public DNSResourceRecord getOpt()
+	{
+		for (DNSResourceRecord record : this.additional)
+		{
+			if (record.getType() == TYPE_OPT)
+			{ return record; }
+		}
+		return null;
+	}
+	
+	/** @return the UDP payload size the sender can receive (at least 512), or 0 without EDNS */
+	public int getUdpPayloadSize()
+	{
+		DNSResourceRecord opt = this.getOpt();
+		return opt == null ? 0 : Math.max(MIN_UDP_PAYLOAD_SIZE, opt.getCls() & 0xffff);
+	}
+	
+	/** Advertises size as the UDP payload this side can receive, adding an OPT record if needed */
+	public void setUdpPayloadSize(int size)
+	{
+		DNSResourceRecord opt = this.getOpt();
+		if (opt == null)
+		{
+			opt = new DNSResourceRecord(DNSName.ROOT, TYPE_OPT, new DNSRdataBytes());
+			this.additional.add(opt);
+		}
+		opt.setClass((short)size);
+	}
+	
+	/** Drops the OPT record; it describes a single hop and is never cached or passed on */
+	public void removeOpt()
+	{
+		List<DNSResourceRecord> records = new ArrayList<DNSResourceRecord>(this.additional.size());
+		for (DNSResourceRecord record : this.additional)
+		{
+			if (record.getType() != TYPE_OPT)
+			{ records.add(record); }
+		}
+		this.additional = records;
+	}
+	
 	public static DNS deserialize(byte[] data, int length)
 	{
 		DNS dns = new DNS();
@@ -196,10 +246,24 @@ public class DNS
 		return dns;
 	}
 	
+	/** Encodes the message, compressing repeated names with pointers (RFC 1035 4.1.4) */
 	public byte[] serialize()
 	{
 		byte[] data = new byte[this.getLength()];
 		ByteBuffer bb = ByteBuffer.wrap(data);
+		int length = this.writeTo(bb, new DNSNameTable());
+		return Arrays.copyOf(data, length);
+	}
+	
+	/**
+	 * Encodes the message at the buffer's position in a single pass, with no intermediate
+	 * arrays; names is reset and reused for compression.
+	 * @return number of bytes written
+	 */
+	public int writeTo(ByteBuffer bb, DNSNameTable names)
+	{
+		int start = bb.position();
+		names.reset(bb);
 		bb.putShort(this.id);
 		
 		byte tmp = 0;
@@ -222,18 +286,19 @@ public class DNS
 		bb.putShort((short)(this.authorities.size()));
 		bb.putShort((short)(this.additional.size()));
 		
-		for (DNSQuestion question : this.questions)
-		{ bb.put(question.serialize()); }
-		for (DNSResourceRecord record : this.answers)
-		{ bb.put(record.serialize()); }
-		for (DNSResourceRecord record : this.authorities)
-		{ bb.put(record.serialize()); }
-		for (DNSResourceRecord record : this.additional)
-		{ bb.put(record.serialize()); }
+		for (int i = 0; i < this.questions.size(); i++)
+		{ this.questions.get(i).writeTo(bb, names); }
+		for (int i = 0; i < this.answers.size(); i++)
+		{ this.answers.get(i).writeTo(bb, names); }
+		for (int i = 0; i < this.authorities.size(); i++)
+		{ this.authorities.get(i).writeTo(bb, names); }
+		for (int i = 0; i < this.additional.size(); i++)
+		{ this.additional.get(i).writeTo(bb, names); }
 		
-		return data;
+		return bb.position() - start;
 	}
 	
+	/** Uncompressed size; an upper bound on the length of {@link #serialize()} */
 	public int getLength()
 	{
 		int length = 12;
@@ -270,9 +335,18 @@ public class DNS
 		case DNS.RCODE_FORMAT_ERROR:
 			strRcode = "Format error";
 			break;
+		case DNS.RCODE_SERVER_FAILURE:
+			strRcode = "Server failure";
+			break;
+		case DNS.RCODE_NAME_ERROR:
+			strRcode = "Name error";
+			break;
 		case DNS.RCODE_NOT_IMPLEMENTED:
 			strRcode = "Not implemented";
 			break;
+		case DNS.RCODE_REFUSED:
+			strRcode = "Refused";
+			break;
 		default:
 			strRcode = String.format("Unknown (%d)", this.rcode);
 			break;
@@ -299,63 +373,8 @@ public class DNS
 	}
 	
 	public static String deserializeName(ByteBuffer bb)
-	{
-		String name = new String();
-		
-		// Continue while there is another label, or a pointer
-		byte labelLength = bb.get();
-		while ((labelLength > 0) 
-				|| ((labelLength & 0b11000000) == 0b11000000))
-		{
-			if ((labelLength & 0b11000000) == 0b11000000)
-			{
-				// Reader pointer
-				bb.position(bb.position()-1);
-				short ptr = (short)(bb.getShort() & 0b0011111111111111);
-				
-				// Go to pointer, saving place to return
-				int returnPtr = bb.position();
-				bb.position(ptr);
-				
-				name += "." + DNS.deserializeName(bb);
-				
-				// Return to location after pointer
-				bb.position(returnPtr);
-				break;
-			}
-			else
-			{
-				byte[] labelBytes = new byte[labelLength];
-				bb.get(labelBytes);
-				name += "." 
-						+ new String(labelBytes, StandardCharsets.US_ASCII);
-			}
-			labelLength = bb.get();
-		}
-		
-		// Remove leading period
-		if (name.length() > 0)
-		{ name = name.substring(1); }
-		
-		return name;
-	}
+	{ return DNSName.read(bb).toString(); }
 	
 	public static byte[] serializeName(String name)
-	{
-		byte[] data = new byte[name.length() + 1 + (name.length() > 0 ? 1 : 0)];
-		ByteBuffer bb = ByteBuffer.wrap(data);
-		
-		if (name.length() > 0)
-		{
-			String[] labels = name.split("\\.");
-			for (String label : labels)
-			{
-				bb.put((byte)(label.length()));
-				bb.put(label.getBytes(StandardCharsets.US_ASCII));
-			}
-		}
-		bb.put((byte)0);
-		
-		return data;
-	}
+	{ return DNSName.of(name).toWire(); }
 }
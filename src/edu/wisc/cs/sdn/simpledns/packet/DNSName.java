@@ -0,0 +1,224 @@
+package edu.wisc.cs.sdn.simpledns.packet;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Domain name held as uncompressed wire-format labels (length-prefixed, zero-terminated).
+ * Comparison and hashing ignore ASCII case, as DNS does. A parent shares its child's bytes,
+ * so walking up towards the root never copies; the dotted text form is built on demand.
+ */
+public final class DNSName
+{
+	public static final DNSName ROOT = new DNSName(new byte[] { 0 }, 0);
+
+	private static final int MAX_LENGTH = 255;
+	/** Longer length bytes are the reserved 0b01 and 0b10 label types, or pointers */
+	private static final int MAX_LABEL_LENGTH = 63;
+	private static final int MAX_POINTERS = 64;
+	private static final int MAX_INTERNED = 1 << 16;
+	private static final ConcurrentHashMap<DNSName, DNSName> interned = new ConcurrentHashMap<DNSName, DNSName>();
+
+	private final byte[] wire;
+	private final int offset;
+	private final int hash;
+	private String text;
+
+	private DNSName(byte[] wire, int offset)
+	{
+		this.wire = wire;
+		this.offset = offset;
+		this.hash = this.hashFrom(0);
+	}
+
+	/** Parses dotted text; a trailing dot is optional and "" is the root */
+	public static DNSName of(String name)
+	{
+		int length = name.length();
+		if (length > 0 && name.charAt(length - 1) == '.')
+		{ length--; }
+		if (length == 0)
+		{ return ROOT; }
+
+		byte[] wire = new byte[length + 2];
+		int pos = 0;
+		int from = 0;
+		while (from <= length)
+		{
+			int end = name.indexOf('.', from);
+			if (end < 0 || end > length)
+			{ end = length; }
+			wire[pos++] = (byte)(end - from);
+			for (int i = from; i < end; i++)
+			{ wire[pos++] = (byte)name.charAt(i); }
+			from = end + 1;
+		}
+		wire[pos] = 0;
+		DNSName result = new DNSName(wire, 0);
+		result.text = (length == name.length() ? name : name.substring(0, length));
+		return result;
+	}
+
+	/**
+	 * Reads a possibly compressed name at the buffer's position, following pointers
+	 * iteratively; the position ends up just past the name as it appears in place.
+	 */
+	public static DNSName read(ByteBuffer bb)
+	{
+		byte[] wire = new byte[MAX_LENGTH + 1];
+		int length = 0;
+		int pos = bb.position();
+		int returnPos = -1;
+		int pointers = 0;
+		while (true)
+		{
+			int labelLength = bb.get(pos) & 0xff;
+			if ((labelLength & 0b11000000) == 0b11000000)
+			{
+				if (++pointers > MAX_POINTERS)
+				{ throw new IllegalArgumentException("Compression pointer loop"); }
+				if (returnPos < 0)
+				{ returnPos = pos + 2; }
+				pos = ((labelLength & 0b00111111) << 8) | (bb.get(pos + 1) & 0xff);
+				continue;
+			}
+			if (labelLength > MAX_LABEL_LENGTH)
+			{ throw new IllegalArgumentException("Reserved label type"); }
+			if (labelLength == 0)
+			{
+				wire[length++] = 0;
+				bb.position(returnPos < 0 ? pos + 1 : returnPos);
+				break;
+			}
+			if (length + labelLength + 1 >= MAX_LENGTH)
+			{ throw new IllegalArgumentException("Name too long"); }
+			wire[length++] = (byte)labelLength;
+			for (int i = 1; i <= labelLength; i++)
+			{ wire[length++] = bb.get(pos + i); }
+			pos += labelLength + 1;
+		}
+		return (length == 1 ? ROOT : new DNSName(Arrays.copyOf(wire, length), 0));
+	}
+
+	public boolean isRoot()
+	{ return this.wire[this.offset] == 0; }
+
+	public int getLabelCount()
+	{
+		int count = 0;
+		for (int pos = this.offset; this.wire[pos] != 0; pos += (this.wire[pos] & 0xff) + 1)
+		{ count++; }
+		return count;
+	}
+
+	/** Uncompressed wire length, terminating zero included */
+	public int getWireLength()
+	{ return this.wire.length - this.offset; }
+
+	/** The name without its first label; the root is its own parent */
+	public DNSName parent()
+	{
+		if (this.isRoot())
+		{ return this; }
+		int next = this.offset + (this.wire[this.offset] & 0xff) + 1;
+		return (this.wire[next] == 0 ? ROOT : new DNSName(this.wire, next));
+	}
+
+	/** True if this name is zone itself or lies below it */
+	public boolean isSubdomainOf(DNSName zone)
+	{
+		int extra = this.getWireLength() - zone.getWireLength();
+		if (extra < 0)
+		{ return false; }
+		// The matching suffix has to start on a label boundary
+		int pos = this.offset;
+		while (pos - this.offset < extra)
+		{ pos += (this.wire[pos] & 0xff) + 1; }
+		return pos - this.offset == extra && regionEquals(this.wire, pos, zone.wire, zone.offset, zone.getWireLength());
+	}
+
+	/** Canonical instance of an equal name, for suffixes shared by many cache entries */
+	public DNSName intern()
+	{
+		DNSName existing = interned.get(this);
+		if (existing != null)
+		{ return existing; }
+		if (interned.size() >= MAX_INTERNED)
+		{ return this; }
+		existing = interned.putIfAbsent(this, this);
+		return (existing != null ? existing : this);
+	}
+
+	/** Writes the name uncompressed */
+	public void writeTo(ByteBuffer bb)
+	{ bb.put(this.wire, this.offset, this.getWireLength()); }
+
+	public byte[] toWire()
+	{ return Arrays.copyOfRange(this.wire, this.offset, this.wire.length); }
+
+	/** Byte i of the wire form */
+	int byteAt(int i)
+	{ return this.wire[this.offset + i] & 0xff; }
+
+	/** Case-insensitive hash of the suffix starting at wire position from */
+	int hashFrom(int from)
+	{
+		int h = 0;
+		for (int i = this.offset + from; i < this.wire.length; i++)
+		{ h = 31 * h + toLower(this.wire[i]); }
+		return h;
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (this == o)
+		{ return true; }
+		if (!(o instanceof DNSName))
+		{ return false; }
+		DNSName other = (DNSName)o;
+		return this.hash == other.hash && this.getWireLength() == other.getWireLength()
+				&& regionEquals(this.wire, this.offset, other.wire, other.offset, this.getWireLength());
+	}
+
+	@Override
+	public int hashCode()
+	{ return this.hash; }
+
+	@Override
+	public String toString()
+	{
+		String result = this.text;
+		if (result == null)
+		{
+			StringBuilder sb = new StringBuilder(this.getWireLength());
+			int pos = this.offset;
+			while (this.wire[pos] != 0)
+			{
+				int labelLength = this.wire[pos] & 0xff;
+				if (sb.length() > 0)
+				{ sb.append('.'); }
+				sb.append(new String(this.wire, pos + 1, labelLength, StandardCharsets.US_ASCII));
+				pos += labelLength + 1;
+			}
+			result = sb.toString();
+			this.text = result;
+		}
+		return result;
+	}
+
+	private static boolean regionEquals(byte[] a, int aFrom, byte[] b, int bFrom, int length)
+	{
+		for (int i = 0; i < length; i++)
+		{
+			if (toLower(a[aFrom + i]) != toLower(b[bFrom + i]))
+			{ return false; }
+		}
+		return true;
+	}
+
+	private static int toLower(byte b)
+	{ return (b >= 'A' && b <= 'Z') ? b + ('a' - 'A') : b; }
+}
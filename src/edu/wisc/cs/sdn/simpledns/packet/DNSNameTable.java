@@ -0,0 +1,94 @@
+package edu.wisc.cs.sdn.simpledns.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compression state for one message being written (RFC 1035 4.1.4). Remembers where each
+ * name suffix was written and matches new names against the bytes already in the buffer,
+ * so it can be reset and reused for every message without allocating.
+ */
+public class DNSNameTable
+{
+	private static final int MAX_ENTRIES = 256;
+	private static final int MAX_POINTER = 0b0011111111111111;
+
+	private final int[] offsets = new int[MAX_ENTRIES];
+	private final int[] hashes = new int[MAX_ENTRIES];
+	private int size;
+	private ByteBuffer bb;
+	private int base;
+
+	/** Starts a new message at the buffer's current position */
+	public void reset(ByteBuffer bb)
+	{
+		this.bb = bb;
+		this.base = bb.position();
+		this.size = 0;
+	}
+
+	/** Writes name, ending it with a pointer to the longest suffix already in the message */
+	public void writeName(DNSName name)
+	{
+		int pos = 0;
+		int labelLength;
+		while ((labelLength = name.byteAt(pos)) != 0)
+		{
+			int hash = name.hashFrom(pos);
+			int ptr = this.find(hash, name, pos);
+			if (ptr >= 0)
+			{
+				this.bb.putShort((short)(0b1100000000000000 | ptr));
+				return;
+			}
+			int offset = this.bb.position() - this.base;
+			if (offset <= MAX_POINTER && this.size < MAX_ENTRIES)
+			{
+				this.offsets[this.size] = offset;
+				this.hashes[this.size] = hash;
+				this.size++;
+			}
+			for (int i = 0; i <= labelLength; i++)
+			{ this.bb.put((byte)name.byteAt(pos + i)); }
+			pos += labelLength + 1;
+		}
+		this.bb.put((byte)0);
+	}
+
+	private int find(int hash, DNSName name, int from)
+	{
+		for (int i = 0; i < this.size; i++)
+		{
+			if (this.hashes[i] == hash && this.matches(this.offsets[i], name, from))
+			{ return this.offsets[i]; }
+		}
+		return -1;
+	}
+
+	/** Compares the suffix of name at from with the (possibly compressed) name written at offset */
+	private boolean matches(int offset, DNSName name, int from)
+	{
+		int pos = this.base + offset;
+		int i = from;
+		while (true)
+		{
+			int labelLength = this.bb.get(pos) & 0xff;
+			if ((labelLength & 0b11000000) == 0b11000000)
+			{
+				pos = this.base + (((labelLength & 0b00111111) << 8) | (this.bb.get(pos + 1) & 0xff));
+				continue;
+			}
+			if (labelLength != name.byteAt(i))
+			{ return false; }
+			if (labelLength == 0)
+			{ return true; }
+			// Exact bytes, so the pointer never changes the case of what it stands for
+			for (int k = 1; k <= labelLength; k++)
+			{
+				if ((this.bb.get(pos + k) & 0xff) != name.byteAt(i + k))
+				{ return false; }
+			}
+			pos += labelLength + 1;
+			i += labelLength + 1;
+		}
+	}
+}
@@ -4,17 +4,20 @@ import java.nio.ByteBuffer;
 
 public class DNSQuestion 
 {
-	private String name;
+	private DNSName name;
 	private short type;
 	private short cls;
 	
 	public DNSQuestion()
 	{
-		this.name = new String();
+		this.name = DNSName.ROOT;
 		this.cls = DNS.CLASS_IN;
 	}
 	
 	public DNSQuestion(String name, short type)
+	{ this(DNSName.of(name), type); }
+	
+	public DNSQuestion(DNSName name, short type)
 	{
 		this();
 		this.name = name;
@@ -22,9 +25,15 @@ public class DNSQuestion
 	}
 	
 	public String getName()
-	{ return this.name; }
+	{ return this.name.toString(); }
 	
 	public void setName(String name)
+	{ this.name = DNSName.of(name); }
+	
+	public DNSName getDomainName()
+	{ return this.name; }
+	
+	public void setDomainName(DNSName name)
 	{ this.name = name; }
 	
 	public short getType()
@@ -43,7 +52,7 @@ public class DNSQuestion
 	{
 		DNSQuestion question = new DNSQuestion();
 
-		question.name = DNS.deserializeName(bb);		
+		question.name = DNSName.read(bb);		
 		question.type = bb.getShort();
 		question.cls = bb.getShort();
 		
@@ -55,16 +64,23 @@ public class DNSQuestion
 		byte[] data = new byte[this.getLength()];
 		ByteBuffer bb = ByteBuffer.wrap(data);
 		
-		bb.put(DNS.serializeName(this.name));
+		this.name.writeTo(bb);
 		bb.putShort(this.type);
 		bb.putShort(this.cls);
 		
 		return data;
 	}
 	
+	public void writeTo(ByteBuffer bb, DNSNameTable names)
+	{
+		names.writeName(this.name);
+		bb.putShort(this.type);
+		bb.putShort(this.cls);
+	}
+	
 	public int getLength()
 	{
-		return this.name.length() + 1 + (name.length() > 0 ? 1 : 0) + 4;
+		return this.name.getWireLength() + 4;
 	}
 	
 	public String toString()
@@ -81,6 +97,9 @@ public class DNSQuestion
 		case DNS.TYPE_CNAME:
 			strType = "CNAME";
 			break;
+		case DNS.TYPE_SOA:
+			strType = "SOA";
+			break;
 		case DNS.TYPE_AAAA:
 			strType = "AAAA";
 			break;
@@ -1,7 +1,14 @@
 package edu.wisc.cs.sdn.simpledns.packet;
 
+import java.nio.ByteBuffer;
+
 public interface DNSRdata 
 {
 	public byte[] serialize();
+	
+	/** Writes the rdata at the buffer's position; names compresses any domain names */
+	public void writeTo(ByteBuffer bb, DNSNameTable names);
+	
+	/** Uncompressed length */
 	public int getLength();
 }
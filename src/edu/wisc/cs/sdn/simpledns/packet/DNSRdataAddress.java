@@ -9,18 +9,34 @@ import java.nio.ByteBuffer;
 public class DNSRdataAddress implements DNSRdata 
 {
 	private InetAddress address;
+	/** Wire form of address; InetAddress.getAddress() hands out a fresh copy on every call */
+	private byte[] raw;
 	
 	public DNSRdataAddress()
 	{ }
 	
 	public DNSRdataAddress(InetAddress address)
-	{ this.address = address; }
+	{ this.setAddress(address); }
 	
 	public InetAddress getAddress()
 	{ return this.address; }
 	
 	public void setAddress(InetAddress address)
-	{ this.address = address; }
+	{
+		this.address = address;
+		this.raw = (address == null ? null : address.getAddress());
+	}
+	
+	/** True if this holds an IPv4 address, which {@link #getIpv4()} can read */
+	public boolean isIpv4()
+	{ return (this.raw != null && this.raw.length == 4); }
+	
+	/** The IPv4 address as a big-endian int, read in place rather than from a copy */
+	public int getIpv4()
+	{
+		return (this.raw[0] & 0xff) << 24 | (this.raw[1] & 0xff) << 16
+				| (this.raw[2] & 0xff) << 8 | (this.raw[3] & 0xff);
+	}
 	
 	public static DNSRdata deserialize(ByteBuffer bb, short len)
 	{
@@ -33,6 +49,8 @@ public class DNSRdataAddress implements DNSRdata
 			{ rdata.address = Inet4Address.getByAddress(addrBytes); } 
 			else if (16 == len)
 			{ rdata.address = Inet6Address.getByAddress(addrBytes); } 
+			if (rdata.address != null)
+			{ rdata.raw = addrBytes; }
 		}
 		catch (UnknownHostException e) 
 		{ e.printStackTrace(); }
@@ -47,8 +65,13 @@ public class DNSRdataAddress implements DNSRdata
 		return data;
 	}
 	
+	public void writeTo(ByteBuffer bb, DNSNameTable names)
+	{ bb.put(this.raw); }
+	
 	public int getLength()
 	{
+		if (this.raw != null)
+		{ return this.raw.length; }
 		if (this.address instanceof Inet4Address)
 		{ return 4; }
 		else if (this.address instanceof Inet6Address)
@@ -29,6 +29,9 @@ public class DNSRdataBytes implements DNSRdata
 	public byte[] serialize()
 	{ return this.bytes; }
 	
+	public void writeTo(ByteBuffer bb, DNSNameTable names)
+	{ bb.put(this.bytes); }
+	
 	public int getLength()
 	{ return this.bytes.length; }
 
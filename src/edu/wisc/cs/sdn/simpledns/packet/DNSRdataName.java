@@ -4,33 +4,45 @@ import java.nio.ByteBuffer;
 
 public class DNSRdataName implements DNSRdata 
 {
-	private String name;
+	private DNSName name;
 	
 	public DNSRdataName()
-	{ this.name = new String(); }
+	{ this.name = DNSName.ROOT; }
 	
 	public DNSRdataName(String name)
+	{ this.name = DNSName.of(name); }
+	
+	public DNSRdataName(DNSName name)
 	{ this.name = name; }
 	
 	public String getName()
-	{ return this.name; }
+	{ return this.name.toString(); }
 	
 	public void setName(String name)
+	{ this.name = DNSName.of(name); }
+	
+	public DNSName getDomainName()
+	{ return this.name; }
+	
+	public void setDomainName(DNSName name)
 	{ this.name = name; }
 	
 	public static DNSRdata deserialize(ByteBuffer bb)
 	{
 		DNSRdataName rdata = new DNSRdataName();		
-		rdata.name = DNS.deserializeName(bb);
+		rdata.name = DNSName.read(bb);
 		return rdata;
 	}
 	
 	public byte[] serialize()
-	{ return DNS.serializeName(this.name); }
+	{ return this.name.toWire(); }
+	
+	public void writeTo(ByteBuffer bb, DNSNameTable names)
+	{ names.writeName(this.name); }
 	
 	public int getLength()
-	{ return this.name.length() + (this.name.length() > 0 ? 2 : 0); }
+	{ return this.name.getWireLength(); }
 	
 	public String toString()
-	{ return this.name; }
+	{ return this.name.toString(); }
 }
@@ -0,0 +1,112 @@
+package edu.wisc.cs.sdn.simpledns.packet;
+
+import java.nio.ByteBuffer;
+
+public class DNSRdataSoa implements DNSRdata 
+{
+	private DNSName mname;
+	private DNSName rname;
+	private int serial;
+	private int refresh;
+	private int retry;
+	private int expire;
+	private int minimum;
+	
+	public DNSRdataSoa()
+	{
+		this.mname = DNSName.ROOT;
+		this.rname = DNSName.ROOT;
+	}
+	
+	public String getMname()
+	{ return this.mname.toString(); }
+	
+	public void setMname(String mname)
+	{ this.mname = DNSName.of(mname); }
+	
+	public String getRname()
+	{ return this.rname.toString(); }
+	
+	public void setRname(String rname)
+	{ this.rname = DNSName.of(rname); }
+	
+	public int getSerial()
+	{ return this.serial; }
+	
+	public void setSerial(int serial)
+	{ this.serial = serial; }
+	
+	public int getRefresh()
+	{ return this.refresh; }
+	
+	public void setRefresh(int refresh)
+	{ this.refresh = refresh; }
+	
+	public int getRetry()
+	{ return this.retry; }
+	
+	public void setRetry(int retry)
+	{ this.retry = retry; }
+	
+	public int getExpire()
+	{ return this.expire; }
+	
+	public void setExpire(int expire)
+	{ this.expire = expire; }
+	
+	/** Negative-caching TTL of the zone (RFC 2308) */
+	public int getMinimum()
+	{ return this.minimum; }
+	
+	public void setMinimum(int minimum)
+	{ this.minimum = minimum; }
+	
+	public static DNSRdata deserialize(ByteBuffer bb)
+	{
+		DNSRdataSoa rdata = new DNSRdataSoa();
+		rdata.mname = DNSName.read(bb);
+		rdata.rname = DNSName.read(bb);
+		rdata.serial = bb.getInt();
+		rdata.refresh = bb.getInt();
+		rdata.retry = bb.getInt();
+		rdata.expire = bb.getInt();
+		rdata.minimum = bb.getInt();
+		return rdata;
+	}
+	
+	public byte[] serialize()
+	{
+		byte[] data = new byte[this.getLength()];
+		ByteBuffer bb = ByteBuffer.wrap(data);
+		this.mname.writeTo(bb);
+		this.rname.writeTo(bb);
+		bb.putInt(this.serial);
+		bb.putInt(this.refresh);
+		bb.putInt(this.retry);
+		bb.putInt(this.expire);
+		bb.putInt(this.minimum);
+		return data;
+	}
+	
+	public void writeTo(ByteBuffer bb, DNSNameTable names)
+	{
+		names.writeName(this.mname);
+		names.writeName(this.rname);
+		bb.putInt(this.serial);
+		bb.putInt(this.refresh);
+		bb.putInt(this.retry);
+		bb.putInt(this.expire);
+		bb.putInt(this.minimum);
+	}
+	
+	public int getLength()
+	{
+		return this.mname.getWireLength() + this.rname.getWireLength() + 20;
+	}
+	
+	public String toString()
+	{
+		return String.format("%s %s %d %d %d %d %d", this.mname, this.rname,
+				this.serial, this.refresh, this.retry, this.expire, this.minimum);
+	}
+}
@@ -38,6 +38,13 @@ public class DNSRdataString implements DNSRdata
 		return data; 
 	}
 	
+	public void writeTo(ByteBuffer bb, DNSNameTable names)
+	{
+		bb.put((byte)(this.string.length()));
+		for (int i = 0; i < this.string.length(); i++)
+		{ bb.put((byte)this.string.charAt(i)); }
+	}
+	
 	public int getLength()
 	{ return this.string.length() + 1; }
 
@@ -4,7 +4,7 @@ import java.nio.ByteBuffer;
 
 public class DNSResourceRecord 
 {
-	private String name;
+	private DNSName name;
 	private short type;
 	private short cls;
 	private int ttl;
@@ -12,12 +12,15 @@ public class DNSResourceRecord
 	
 	public DNSResourceRecord()
 	{
-		this.name = new String();
+		this.name = DNSName.ROOT;
 		this.cls = DNS.CLASS_IN;
 		this.data = new DNSRdataBytes();
 	}
 	
 	public DNSResourceRecord(String name, short type, DNSRdata data)
+	{ this(DNSName.of(name), type, data); }
+	
+	public DNSResourceRecord(DNSName name, short type, DNSRdata data)
 	{
 		this();
 		this.name = name;
@@ -26,9 +29,15 @@ public class DNSResourceRecord
 	}
 	
 	public String getName()
-	{ return this.name; }
+	{ return this.name.toString(); }
 	
 	public void setName(String name)
+	{ this.name = DNSName.of(name); }
+	
+	public DNSName getDomainName()
+	{ return this.name; }
+	
+	public void setDomainName(DNSName name)
 	{ this.name = name; }
 	
 	public short getType()
@@ -40,6 +49,9 @@ public class DNSResourceRecord
 	public short getCls()
 	{ return this.cls; }
 	
+	public void setClass(short cls)
+	{ this.cls = cls; }
+	
 	public int getTtl()
 	{ return this.ttl; }
 	
@@ -56,7 +68,7 @@ public class DNSResourceRecord
 	{
 		DNSResourceRecord record = new DNSResourceRecord();		
 		
-		record.name = DNS.deserializeName(bb);
+		record.name = DNSName.read(bb);
 		record.type = bb.getShort();
 		record.cls = bb.getShort();
 		record.ttl = bb.getInt();
@@ -69,12 +81,19 @@ public class DNSResourceRecord
 			{
 			case DNS.TYPE_A:
 			case DNS.TYPE_AAAA:
-				record.data = DNSRdataAddress.deserialize(bb, rdataLength);
+				// An address of the wrong length is kept as opaque bytes, never as a null address
+				if (rdataLength == (record.type == DNS.TYPE_A ? 4 : 16))
+				{ record.data = DNSRdataAddress.deserialize(bb, rdataLength); }
+				else
+				{ record.data = DNSRdataBytes.deserialize(bb, rdataLength); }
 				break;
 			case DNS.TYPE_NS:
 			case DNS.TYPE_CNAME:
 				record.data = DNSRdataName.deserialize(bb);
 				break;
+			case DNS.TYPE_SOA:
+				record.data = DNSRdataSoa.deserialize(bb);
+				break;
 			default:
 				record.data = DNSRdataBytes.deserialize(bb, rdataLength);
 			}
@@ -88,7 +107,7 @@ public class DNSResourceRecord
 		byte[] data = new byte[this.getLength()];
 		ByteBuffer bb = ByteBuffer.wrap(data);
 		
-		bb.put(DNS.serializeName(this.name));	
+		this.name.writeTo(bb);
 		bb.putShort(this.type);
 		bb.putShort(this.cls);
 		bb.putInt(this.ttl);
@@ -98,10 +117,24 @@ public class DNSResourceRecord
 		return data;
 	}
 	
+	/** Writes the record, compressing its owner name and any names inside well-known rdata */
+	public void writeTo(ByteBuffer bb, DNSNameTable names)
+	{
+		names.writeName(this.name);
+		bb.putShort(this.type);
+		bb.putShort(this.cls);
+		bb.putInt(this.ttl);
+		
+		// Compressed rdata length is only known once it is written
+		int lengthPos = bb.position();
+		bb.putShort((short)0);
+		this.data.writeTo(bb, names);
+		bb.putShort(lengthPos, (short)(bb.position() - lengthPos - 2));
+	}
+	
 	public int getLength()
 	{
-		return 1 + this.name.length() + (this.name.length() > 0 ? 1 : 0)
-				+ 10 + this.data.getLength();
+		return this.name.getWireLength() + 10 + this.data.getLength();
 	}
 	
 	public String toString()
@@ -118,6 +151,9 @@ public class DNSResourceRecord
 		case DNS.TYPE_CNAME:
 			strType = "CNAME";
 			break;
+		case DNS.TYPE_SOA:
+			strType = "SOA";
+			break;
 		case DNS.TYPE_AAAA:
 			strType = "AAAA";
 			break;
@@ -127,6 +163,9 @@ public class DNSResourceRecord
 		case DNS.TYPE_EC2:
 			strType = "EC2";
 			break;
+		case DNS.TYPE_OPT:
+			strType = "OPT";
+			break;
 		default:
 			strType = String.format("Unknown (%d)", this.type);
 			break;
@@ -0,0 +1,217 @@
+package edu.wisc.cs.sdn.simpledns.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read-only view over a DNS message in wire format. Header fields are read in place;
+ * names and records are only decoded when asked for, and locating records walks the
+ * message once without building any of them. Use {@link #toDNS()} for the full object model.
+ */
+public class DNSView
+{
+	private static final int HEADER_LENGTH = 12;
+
+	private final ByteBuffer bb;
+	private final int length;
+
+	/** Offsets of every question, then every resource record; built on first use */
+	private int[] offsets;
+
+	private DNSView(ByteBuffer bb, int length)
+	{
+		this.bb = bb;
+		this.length = length;
+	}
+
+	/**
+	 * @return a view over the first length bytes of data, or null if they cannot
+	 *         even hold a DNS header
+	 */
+	public static DNSView wrap(byte[] data, int length)
+	{
+		if (length < HEADER_LENGTH)
+		{ return null; }
+		return new DNSView(ByteBuffer.wrap(data, 0, length), length);
+	}
+
+	public int getLength()
+	{ return this.length; }
+
+	public short getId()
+	{ return this.bb.getShort(0); }
+
+	public boolean isQuery()
+	{ return (this.bb.get(2) & 0b10000000) == 0; }
+
+	public byte getOpcode()
+	{ return (byte)((this.bb.get(2) & 0b01111000) >> 3); }
+
+	public boolean isAuthoritative()
+	{ return (this.bb.get(2) & 0b00000100) != 0; }
+
+	public boolean isTruncated()
+	{ return (this.bb.get(2) & 0b00000010) != 0; }
+
+	public boolean isRecursionDesired()
+	{ return (this.bb.get(2) & 0b00000001) != 0; }
+
+	public boolean isRecursionAvailable()
+	{ return (this.bb.get(3) & 0b10000000) != 0; }
+
+	public byte getRcode()
+	{ return (byte)(this.bb.get(3) & 0b00001111); }
+
+	public int getQuestionCount()
+	{ return this.bb.getShort(4) & 0xffff; }
+
+	public int getAnswerCount()
+	{ return this.bb.getShort(6) & 0xffff; }
+
+	public int getAuthorityCount()
+	{ return this.bb.getShort(8) & 0xffff; }
+
+	public int getAdditionalCount()
+	{ return this.bb.getShort(10) & 0xffff; }
+
+	/** @return the record index of the OPT pseudo-record (RFC 6891), or -1 without EDNS */
+	public int getOptIndex()
+	{
+		int end = this.getRecordCount();
+		for (int i = end - this.getAdditionalCount(); i < end; i++)
+		{
+			if (this.getRecordType(i) == DNS.TYPE_OPT)
+			{ return i; }
+		}
+		return -1;
+	}
+
+	/** @return the UDP payload size the sender can receive (at least 512), or 0 without EDNS */
+	public int getUdpPayloadSize()
+	{
+		int opt = this.getOptIndex();
+		return opt < 0 ? 0 : Math.max(DNS.MIN_UDP_PAYLOAD_SIZE, this.getRecordClass(opt) & 0xffff);
+	}
+
+	/** Answers, authorities and additional records together, in message order */
+	public int getRecordCount()
+	{ return this.getAnswerCount() + this.getAuthorityCount() + this.getAdditionalCount(); }
+
+	/** @return false if the counts in the header do not match the message body */
+	public boolean isWellFormed()
+	{ return this.index() != null; }
+
+	public DNSName getQuestionName(int i)
+	{ return this.nameAt(this.questionOffset(i)); }
+
+	public short getQuestionType(int i)
+	{ return this.bb.getShort(this.skipName(this.questionOffset(i))); }
+
+	public short getQuestionClass(int i)
+	{ return this.bb.getShort(this.skipName(this.questionOffset(i)) + 2); }
+
+	/** Absolute offset just past the question's class field */
+	public int getQuestionEndOffset(int i)
+	{ return this.skipName(this.questionOffset(i)) + 4; }
+	
+	public DNSQuestion getQuestion(int i)
+	{ return DNSQuestion.deserialize(this.at(this.questionOffset(i))); }
+
+	public DNSName getRecordName(int i)
+	{ return this.nameAt(this.recordOffset(i)); }
+
+	public short getRecordType(int i)
+	{ return this.bb.getShort(this.skipName(this.recordOffset(i))); }
+
+	public short getRecordClass(int i)
+	{ return this.bb.getShort(this.skipName(this.recordOffset(i)) + 2); }
+
+	public int getRecordTtl(int i)
+	{ return this.bb.getInt(this.getRecordTtlOffset(i)); }
+
+	/** Absolute offset of the record's 32-bit TTL field */
+	public int getRecordTtlOffset(int i)
+	{ return this.skipName(this.recordOffset(i)) + 4; }
+
+	public DNSResourceRecord getRecord(int i)
+	{ return DNSResourceRecord.deserialize(this.at(this.recordOffset(i))); }
+
+	public DNS toDNS()
+	{ return DNS.deserialize(this.bb.array(), this.length); }
+
+	private int questionOffset(int i)
+	{
+		if (i < 0 || i >= this.getQuestionCount())
+		{ throw new IndexOutOfBoundsException("question " + i); }
+		return this.checkedIndex()[i];
+	}
+
+	private int recordOffset(int i)
+	{
+		if (i < 0 || i >= this.getRecordCount())
+		{ throw new IndexOutOfBoundsException("record " + i); }
+		return this.checkedIndex()[this.getQuestionCount() + i];
+	}
+
+	private int[] checkedIndex()
+	{
+		int[] index = this.index();
+		if (index == null)
+		{ throw new IllegalStateException("Malformed DNS message"); }
+		return index;
+	}
+
+	private int[] index()
+	{
+		if (this.offsets != null)
+		{ return this.offsets; }
+		int questions = this.getQuestionCount();
+		int[] index = new int[questions + this.getRecordCount()];
+		int pos = HEADER_LENGTH;
+		for (int i = 0; i < index.length; i++)
+		{
+			if (pos >= this.length)
+			{ return null; }
+			index[i] = pos;
+			pos = this.skipName(pos);
+			if (pos < 0)
+			{ return null; }
+			if (i < questions)
+			{ pos += 4; }
+			else
+			{
+				if (pos + 10 > this.length)
+				{ return null; }
+				pos += 10 + (this.bb.getShort(pos + 8) & 0xffff);
+			}
+			if (pos > this.length)
+			{ return null; }
+		}
+		this.offsets = index;
+		return index;
+	}
+
+	/** @return offset just past the name starting at pos, or -1 if it runs off the end */
+	private int skipName(int pos)
+	{
+		while (pos < this.length)
+		{
+			int labelLength = this.bb.get(pos) & 0xff;
+			if ((labelLength & 0b11000000) == 0b11000000)
+			{ return pos + 2; }
+			if (labelLength == 0)
+			{ return pos + 1; }
+			pos += labelLength + 1;
+		}
+		return -1;
+	}
+
+	private DNSName nameAt(int pos)
+	{ return DNSName.read(this.at(pos)); }
+
+	private ByteBuffer at(int pos)
+	{
+		ByteBuffer dup = this.bb.duplicate();
+		dup.position(pos);
+		return dup;
+	}
+}